@@ -55,6 +55,7 @@ public class AdminClient  {
         options.addOption("shutdown",false,"shutdown the server");
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
+        options.addOption("drain",false,"in conjuction with shutdown, asking sessions to stop and closing those left at the server's deadline");
         options.addOption("password",true,"password for server");
         
         CommandLineParser parser = new DefaultParser();
@@ -98,6 +99,8 @@ public class AdminClient  {
 	        		endpoint.emit(ServerManager.forceShutdownServer, password);
 	        	} else if(cmd2.hasOption("vader")) {
 	        		endpoint.emit(ServerManager.vaderShutdownServer, password);
+	        	} else if(cmd2.hasOption("drain")) {
+	        		endpoint.emit(ServerManager.drainServer, password);
 	        	} else {
 	        		endpoint.emit(ServerManager.shutdownServer, password);
 	        	}
@@ -13,6 +13,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -29,6 +30,7 @@ import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.IEventCallback;
 import pb.utils.Utils;
 
 /**
@@ -97,42 +99,42 @@ public class FileSharingPeer {
 	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * buffer for file reading
-	 */
-	private static byte[] buffer = new byte[chunkSize];
-	
-	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
+	 * Read chunks of a file and send them to the client for as long as the
+	 * endpoint is writable, i.e. as fast as the connection can take them.
+	 * When the endpoint becomes unwritable this returns, and it should be
+	 * called again when the endpoint emits {@link Endpoint#endpointWritable}.
 	 * @param in the file input stream
 	 * @param endpoint the endpoint to send the file
+	 * @param done set once the whole file has been sent, or has failed
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
-		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
+	public static void continueTransmittingFile(InputStream in,Endpoint endpoint,
+			AtomicBoolean done) {
+		synchronized(in) {
+			if(done.get()) return;
+			byte[] buffer = new byte[chunkSize];
+			try {
+				while(endpoint.isWritable()) {
+					int read = in.read(buffer);
+					if(read==-1) {
+						endpoint.emit(fileContents, ""); // signals no more bytes in file
+						done.set(true);
+						in.close();
+						return;
+					}
+					endpoint.emit(fileContents, new String(Base64.encodeBase64(
+							Arrays.copyOfRange(buffer, 0, read)),
+							StandardCharsets.US_ASCII));
+					if(read<chunkSize) {
+						endpoint.emit(fileContents, "");
+						done.set(true);
+						in.close();
+						return;
+					}
 				}
+			} catch (IOException e) {
+				done.set(true);
+				endpoint.emit(fileError,e.toString());
 			}
-		} catch (IOException e) {
-			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
@@ -145,30 +147,39 @@ public class FileSharingPeer {
 	public static void startTransmittingFile(String filename,Endpoint endpoint) {
 		try {
 			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
+			AtomicBoolean done = new AtomicBoolean(false);
+			// carry on whenever the endpoint has drained what was sent
+			IEventCallback resume = new IEventCallback() {
+				@Override
+				public void callback(Object... args) {
+					continueTransmittingFile(in,endpoint,done);
+					if(done.get()) endpoint.off(Endpoint.endpointWritable, this);
+				}
+			};
+			endpoint.on(Endpoint.endpointWritable, resume);
+			resume.callback();
 		} catch (FileNotFoundException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
 	/**
-	 * Emit a filename as an index update if possible, close when all done.
+	 * Emit the filenames as index updates, close when all done. The updates
+	 * are emitted back to back so that the event protocol can batch them.
 	 * @param filenames
 	 * @param endpoint
 	 */
 	public static void emitIndexUpdate(String peerport,List<String> filenames,Endpoint endpoint,
 			ClientManager clientManager) {
-		if(filenames.size()==0) {
-			clientManager.shutdown(); // no more index updates to do
-		} else {
-			String filename=filenames.remove(0);
+		for(String filename : filenames) {
 			log.info("Sending index update: "+peerport+":"+filename);
 			// an index update has the format: host:port:filename
 			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
-			Utils.getInstance().setTimeout(()->{
-				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
-			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
 		}
+		filenames.clear();
+		Utils.getInstance().setTimeout(()->{
+			clientManager.shutdown(); // no more index updates to do
+		}, 100); // give the index server a moment to report any errors
 	}
 	
 	/**
@@ -10,6 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -20,8 +21,10 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import pb.managers.IOThread;
+import pb.managers.Manager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.IEventCallback;
 import pb.utils.Utils;
 
 /**
@@ -126,39 +129,44 @@ public class IndexServer {
 	}
 	
 	/**
-	 * Transmit a response for each hit. Return the peer that has the file
-	 * and that was the most recently seen, to try and make sure its still
-	 * online.
-	 * @param hits
+	 * Transmit a response for each hit, for as long as the client endpoint
+	 * is writable. When it becomes unwritable this returns, and it should be
+	 * called again when the endpoint emits {@link Endpoint#endpointWritable}.
+	 * Return the peer that has the file and that was the most recently seen,
+	 * to try and make sure its still online.
+	 * @param hits the hits still to transmit
 	 * @param client
+	 * @param done set once the blank query response has been sent
 	 */
-	private static void transmitHits(List<String> hits,Endpoint client) {
-		if(hits.isEmpty()) {
-			log.info("Sending blank query response");
-			client.emit(queryResponse, "");
-			return;
-		}
-		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
+	private static void transmitHits(List<String> hits,Endpoint client,AtomicBoolean done) {
+		synchronized(hits) {
+			while(!done.get() && client.isWritable()) {
+				if(hits.isEmpty()) {
+					log.info("Sending blank query response");
+					client.emit(queryResponse, "");
+					done.set(true);
+					return;
+				}
+				String hit = hits.remove(0);
+				synchronized(keyValueMap) {
+					synchronized(lastTimeSeen) {
+						if(keyValueMap.containsKey(hit)) {
+							List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
+							Collections.sort(peers,
+							new Comparator<String>() {
+								@Override
+								public int compare(String o1, String o2) {
+									// sort largest to smallest
+									return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
+								}
+							});
+							log.info("Sending query response: "+peers.get(0)+":"+hit);
+							client.emit(queryResponse, peers.get(0)+":"+hit);
 						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
+					}
 				}
 			}
 		}
-		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
-		}, 100); // transmit 10 hits per second... no real bandwidth control here.
 	}
 	
 	/**
@@ -181,7 +189,18 @@ public class IndexServer {
 				}
 			}
 		}
-		transmitHits(new ArrayList<String>(hits),client);
+		List<String> remaining = new ArrayList<String>(hits);
+		AtomicBoolean done = new AtomicBoolean(false);
+		// carry on whenever the client has drained what was sent
+		IEventCallback resume = new IEventCallback() {
+			@Override
+			public void callback(Object... args) {
+				transmitHits(remaining,client,done);
+				if(done.get()) client.off(Endpoint.endpointWritable, this);
+			}
+		};
+		client.on(Endpoint.endpointWritable, resume);
+		resume.callback();
 	}
 	
 	/**
@@ -213,6 +232,7 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("selector",false,"use selector loops rather than a thread per connection");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -234,11 +254,12 @@ public class IndexServer {
         
         // create a server manager and setup event handlers
         ServerManager serverManager;
+        Manager.IOMode ioMode = cmd.hasOption("selector") ? Manager.IOMode.Selector : Manager.IOMode.Blocking;
         
         if(cmd.hasOption("password")) {
-        	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
+        	serverManager = new ServerManager(port,cmd.getOptionValue("password"),ioMode);
         } else {
-        	serverManager = new ServerManager(port);
+        	serverManager = new ServerManager(port,ioMode);
         }
         
         // event handlers
@@ -258,10 +279,12 @@ public class IndexServer {
 	        		indexUpdate(parts[2],peerport);
         		}
         	}).on(queryIndex, (eventArgs2)->{
+        		// scanning the index can be slow, so do it off the endpoint's
+        		// thread, keeping the queries of each client in order
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
         		queryIndex(query,endpoint);
-        	}).on(peerUpdate, (eventArgs2)->{
+        	}, Utils.getInstance().getEventExecutor(), endpoint).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
         		peerUpdate(peerport);
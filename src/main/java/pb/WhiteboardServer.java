@@ -85,8 +85,6 @@ public class WhiteboardServer {
 	 */
 	private static int port = Utils.indexServerPort;
     private static List<String> shareargs = new ArrayList<String>();
-
-	private static List<Endpoint> endpointList = new ArrayList<Endpoint>();
 	
 	
 	private static void help(Options options){
@@ -146,7 +144,6 @@ public class WhiteboardServer {
                  }
             }
 
-            endpointList.add(endpoint);
             log.info("Client session started: "+endpoint.getOtherEndpointId());
 //            ip : peerport
 
@@ -158,21 +155,12 @@ public class WhiteboardServer {
 
                 log.info("Received shareBoard request: "+ ips);
                 //send msg to every peers
-                for (Endpoint everyendpoint:endpointList){
-                    if (!everyendpoint.equals(endpoint)){
-                        everyendpoint.emit(sharingBoard, ips);
-                    }
-                }
+                serverManager.broadcast(sharingBoard, ips, (everyendpoint)->!everyendpoint.equals(endpoint));
             }).on(unshareBoard,unshareargs ->{
                 String ips = (String) unshareargs[0];
                 shareargs.remove(ips);
 				log.info("Received unshareBoard request: "+ ips);
-                for (Endpoint everyendpoint:endpointList){
-                    if (!everyendpoint.equals(endpoint)){
-                        everyendpoint.emit(unsharingBoard,ips );
-                    }
-
-                }
+                serverManager.broadcast(unsharingBoard, ips, (everyendpoint)->!everyendpoint.equals(endpoint));
             } ).on(error,errorargs -> {
                 log.warning("error happened");
             });
@@ -1,7 +1,5 @@
 package pb.app;
 
-import pb.managers.endpoint.Endpoint;
-
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -46,8 +44,6 @@ public class Whiteboard {
      */
     private boolean hasbeenchossed = false;
 
-    public ArrayList<Endpoint> beListenedEndpoints =new ArrayList<>();
-
     public boolean getUsed() {
         return this.hasbeenchossed;
     }
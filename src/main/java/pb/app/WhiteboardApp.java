@@ -4,6 +4,7 @@ import org.apache.commons.io.filefilter.TrueFileFilter;
 import pb.WhiteboardServer;
 import pb.managers.ClientManager;
 import pb.managers.PeerManager;
+import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.session.SessionProtocol;
 
@@ -177,8 +178,6 @@ public class WhiteboardApp {
 
     public static PeerManager peerManager;
 
-    private static List<Endpoint> peerendpointList=new ArrayList<Endpoint>();
-
     private static List<Endpoint> connectEndpoints=new ArrayList<Endpoint>();
 
 
@@ -328,7 +327,7 @@ public class WhiteboardApp {
     public void sharing_boards(){
         peerManager.on(PeerManager.peerStarted, (args)->{
             Endpoint endpoint = (Endpoint)args[0];
-            peerendpointList.add(endpoint);
+            ServerManager serverManager = (ServerManager)args[1];
             connectEndpoints.add(endpoint);
 
 
@@ -341,8 +340,8 @@ public class WhiteboardApp {
                 String HostPort = getAddress(requiredatas);
 
                 if ((whiteboards.containsKey(requiredatas))&&(HostPort.equals(peerport))) {
-                    Whiteboard requiredboard = whiteboards.get(requiredatas);
-                    requiredboard.beListenedEndpoints.add(endpoint);
+                    // closed sessions drop out of the registry with their tags
+                    serverManager.getSessions().tag(endpoint,requiredatas);
                 }
             });
 
@@ -373,9 +372,7 @@ public class WhiteboardApp {
 
                     if(requiredWB.addPath(wbp,getBoardVersion(info))){
                         // sent every peers the board data
-                        for (Endpoint endpoint1:requiredWB.beListenedEndpoints){
-                            endpoint1.emit(boardPathUpdate, updatedpath);
-                        }
+                        serverManager.broadcast(boardPathUpdate, info, serverManager.getSessions().tagged(bid)::contains);
                         log.info("Receive updated path: "+info.split("%",2)[1]);
                         log.info("Receive updated version: "+info.split("%",2)[0]);
                         drawSelectedWhiteboard();
@@ -394,9 +391,7 @@ public class WhiteboardApp {
 
                     if(requiredWB.undo(getBoardVersion(info))){
                         // sent every peers the board data
-                        for (Endpoint endpoint1:requiredWB.beListenedEndpoints){
-                            endpoint1.emit(boardUndoUpdate, boardUndoUpdateArgs);
-                        }
+                        serverManager.broadcast(boardUndoUpdate, info, serverManager.getSessions().tagged(bid)::contains);
                         log.info("Received and Accepted Undo Action");
                     }
                     drawSelectedWhiteboard();
@@ -414,9 +409,7 @@ public class WhiteboardApp {
 
                     if(requiredWB.clear(getBoardVersion(info))){
                         // sent every peers the board data
-                        for (Endpoint endpoint1:requiredWB.beListenedEndpoints){
-                            endpoint1.emit(boardClearUpdate, boardClearUpdateArgs);
-                        }
+                        serverManager.broadcast(boardClearUpdate, info, serverManager.getSessions().tagged(bid)::contains);
                         log.info("Received and Accepted Clear Action");
                     }
                     drawSelectedWhiteboard();
@@ -433,7 +426,7 @@ public class WhiteboardApp {
 
                 String unlistenedWB = (String) unlistenBoardArgs[0];
 
-                whiteboards.get(unlistenedWB).beListenedEndpoints.remove(endpoint);
+                serverManager.getSessions().untag(endpoint,unlistenedWB);
             });
 //          "host:port:boardid%version%PATH"
 
@@ -443,11 +436,7 @@ public class WhiteboardApp {
 
                 String info = (String) boardPathUpdateargs[0];
                 String bid = getBoardName(info);
-                Whiteboard updateBoard = whiteboards.get(bid);
-                for (Endpoint endpoint1: updateBoard.beListenedEndpoints){
-
-                    endpoint1.emit(boardPathUpdate, boardPathUpdateargs);
-                }
+                serverManager.broadcast(boardPathUpdate, info, serverManager.getSessions().tagged(bid)::contains);
 
             }).on(boardUndoUpdate,boardUndoargs1 -> {
 
@@ -455,23 +444,14 @@ public class WhiteboardApp {
 
                 String info = (String) boardUndoargs1[0];
                 String bid = getBoardName(info);
-                Whiteboard updateBoard = whiteboards.get(bid);
-                for (Endpoint endpoint1: updateBoard.beListenedEndpoints){
-
-                    endpoint1.emit(boardUndoUpdate, boardUndoargs1);
-
-                }
+                serverManager.broadcast(boardUndoUpdate, info, serverManager.getSessions().tagged(bid)::contains);
 
             }).on(boardClearUpdate,boardClearargs1 -> {
                 log.info("Server Send local Clear update to each listeners");
 
                 String info = (String) boardClearargs1[0];
                 String bid = getBoardName(info);
-                Whiteboard updateBoard = whiteboards.get(bid);
-                for (Endpoint endpoint1: updateBoard.beListenedEndpoints){
-
-                    endpoint.emit(boardClearUpdate, boardClearargs1);
-                }
+                serverManager.broadcast(boardClearUpdate, info, serverManager.getSessions().tagged(bid)::contains);
             });
 
             System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
@@ -481,19 +461,12 @@ public class WhiteboardApp {
         }).on(PeerManager.peerStopped,(args)->{
             Endpoint endpoint = (Endpoint) args[0];
             System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
-            whiteboards.values().forEach((whiteboard)->{
-                whiteboard.beListenedEndpoints.remove(endpoint);
-            });
 
             connectEndpoints.remove(endpoint);
 
             }).on(PeerManager.peerError,(args)->{
             Endpoint endpoint = (Endpoint)args[0];
 
-            whiteboards.values().forEach((whiteboard)->{
-                whiteboard.beListenedEndpoints.remove(endpoint);
-            });
-
             System.out.println("There was error while communication with peer: "
                     +endpoint.getOtherEndpointId());
 
@@ -855,7 +828,7 @@ public class WhiteboardApp {
 				// some other peer modified the board in between
 				drawSelectedWhiteboard(); // just redraw the screen without the path
 			} else {
-                if (selectedBoard.isRemote()|| (selectedBoard.isShared()&&(!selectedBoard.beListenedEndpoints.isEmpty()))) {
+                if (selectedBoard.isRemote()|| (selectedBoard.isShared()&&hasListeners(selectedBoard))) {
                     String data = selectedBoard.toString();
                     String boardName = getBoardName(data);
                     long version = getBoardVersion(data) - 1;
@@ -889,7 +862,7 @@ public class WhiteboardApp {
                     String arg = boardName+"%"+version+"%";
                     peerManager.emit(boardClearUpdate, arg);
                     drawSelectedWhiteboard();
-                }else if (selectedBoard.isShared()&&(!selectedBoard.beListenedEndpoints.isEmpty())) {
+                }else if (selectedBoard.isShared()&&hasListeners(selectedBoard)) {
                     String data = selectedBoard.toString();
                     String boardName = getBoardName(data);
                     long version = getBoardVersion(data) -1;
@@ -925,7 +898,7 @@ public class WhiteboardApp {
                     peerManager.emit(boardUndoUpdate, arg);
                     drawSelectedWhiteboard();
 
-                }else if (selectedBoard.isShared()&&(!selectedBoard.beListenedEndpoints.isEmpty())) {
+                }else if (selectedBoard.isShared()&&hasListeners(selectedBoard)) {
                     String data = selectedBoard.toString();
                     String boardName = getBoardName(data);
                     long version = getBoardVersion(data) -1;
@@ -983,6 +956,17 @@ public class WhiteboardApp {
 	
 	
 
+	/**
+	 * @param whiteboard
+	 * @return true if some peer is listening to the shared board
+	 */
+	private boolean hasListeners(Whiteboard whiteboard) {
+		ServerManager serverManager=peerManager.getServerManager();
+		return serverManager!=null
+				&& !serverManager.getSessions().tagged(whiteboard.getName()).isEmpty();
+	}
+	
+
 	/******
 	 *
 	 * GUI methods and callbacks from GUI for user actions.
@@ -0,0 +1,105 @@
+package pb.managers;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+/**
+ * Counts the connections that a server manager has admitted, in total and
+ * by address, and the tokens of the accept rate limit, to decide whether
+ * to admit a new connection according to an {@link AdmissionPolicy}. Called
+ * by the acceptors of the io thread, and by endpoints as they close.
+ *
+ * @see {@link pb.managers.AdmissionPolicy}
+ * @author aaron
+ *
+ */
+class AdmissionControl {
+	
+	private final AdmissionPolicy policy;
+	
+	/**
+	 * Connections admitted and not yet closed, in total and by address.
+	 */
+	private int connections=0;
+	private final HashMap<InetAddress,Integer> connectionsByAddress=new HashMap<>();
+	
+	/**
+	 * Tokens in the bucket, and {@link System#nanoTime()} when they were
+	 * last topped up.
+	 */
+	private double tokens;
+	private long timeTokens;
+	
+	/**
+	 * Connections that are being told to try again later.
+	 */
+	private int refusing=0;
+	
+	/**
+	 * @param policy
+	 */
+	AdmissionControl(AdmissionPolicy policy) {
+		this.policy=policy;
+		this.tokens=policy.acceptBurst;
+		this.timeTokens=System.nanoTime();
+	}
+	
+	/**
+	 * Admit a connection if the policy allows it, counting it until
+	 * {@link #release(InetAddress)} is called for it.
+	 * @param address the address the connection came from
+	 * @return null if it was admitted, otherwise the reason it was not
+	 */
+	synchronized String admit(InetAddress address) {
+		if(policy.maxConnections>=0 && connections>=policy.maxConnections) {
+			return AdmissionPolicy.tooManyConnections;
+		}
+		int fromAddress=connectionsByAddress.getOrDefault(address,0);
+		if(policy.maxConnectionsPerAddress>=0 && fromAddress>=policy.maxConnectionsPerAddress) {
+			return AdmissionPolicy.tooManyFromAddress;
+		}
+		if(policy.acceptRate>=0) {
+			long now=System.nanoTime();
+			tokens=Math.min(policy.acceptBurst, tokens+(now-timeTokens)*policy.acceptRate/1e9);
+			timeTokens=now;
+			if(tokens<1) return AdmissionPolicy.acceptRateExceeded;
+			tokens--;
+		}
+		connections++;
+		connectionsByAddress.put(address,fromAddress+1);
+		return null;
+	}
+	
+	/**
+	 * An admitted connection has closed.
+	 * @param address the address the connection came from
+	 */
+	synchronized void release(InetAddress address) {
+		connections--;
+		connectionsByAddress.computeIfPresent(address,(key,count)->count>1?count-1:null);
+	}
+	
+	/**
+	 * @return true if a connection that was not admitted can be told to
+	 * try again later, counting it until {@link #refused()} is called
+	 */
+	synchronized boolean startRefusing() {
+		if(policy.retryAfter<0 || refusing>=policy.maxRefusing) return false;
+		refusing++;
+		return true;
+	}
+	
+	/**
+	 * A connection that was told to try again later has closed.
+	 */
+	synchronized void refused() {
+		refusing--;
+	}
+	
+	/**
+	 * @return the number of connections admitted and not yet closed
+	 */
+	synchronized int getConnections() {
+		return connections;
+	}
+}
@@ -0,0 +1,81 @@
+package pb.managers;
+
+/**
+ * Which new connections a {@link ServerManager} admits. A connection is
+ * turned away when the server already has {@link #maxConnections}
+ * connections, or {@link #maxConnectionsPerAddress} from the same address,
+ * or when connections are arriving faster than {@link #acceptRate} per
+ * second on average, allowing bursts of up to {@link #acceptBurst}; i.e. a
+ * token bucket. A connection that is turned away is not given a session:
+ * the client is told to try again after {@link #retryAfter} ms when it asks
+ * for one, and the connection is closed. While {@link #maxRefusing}
+ * connections are already being told so, further connections are just
+ * closed, which costs the server the least.
+ * <br/>
+ * A limit of -1 means no limit, which is the default for all of them. The
+ * fields can be changed before the server manager is started.
+ *
+ * @see {@link pb.managers.ServerManager#setAdmissionPolicy(AdmissionPolicy)}
+ * @author aaron
+ *
+ */
+public class AdmissionPolicy {
+	
+	/**
+	 * Reasons for turning a connection away.
+	 */
+	public static final String tooManyConnections = "tooManyConnections";
+	public static final String tooManyFromAddress = "tooManyFromAddress";
+	public static final String acceptRateExceeded = "acceptRateExceeded";
+	
+	/**
+	 * Most connections that the server can have.
+	 */
+	public int maxConnections = -1;
+	
+	/**
+	 * Most connections that the server can have from the same address.
+	 */
+	public int maxConnectionsPerAddress = -1;
+	
+	/**
+	 * Connections that can be admitted per second on average.
+	 */
+	public double acceptRate = -1;
+	
+	/**
+	 * Connections that can be admitted at once after a quiet while,
+	 * when there is an {@link #acceptRate}.
+	 */
+	public int acceptBurst = 100;
+	
+	/**
+	 * Time in ms that clients that were turned away are asked to wait
+	 * before trying again, or -1 to close their connections without
+	 * telling them anything.
+	 */
+	public long retryAfter = 5000;
+	
+	/**
+	 * Most connections that can be waiting to be told to try again later.
+	 */
+	public int maxRefusing = 128;
+	
+	/**
+	 * A policy that admits every connection.
+	 */
+	public AdmissionPolicy() {
+		
+	}
+	
+	/**
+	 * @param maxConnections
+	 * @param maxConnectionsPerAddress
+	 * @param acceptRate
+	 */
+	public AdmissionPolicy(int maxConnections, int maxConnectionsPerAddress, double acceptRate) {
+		this.maxConnections=maxConnections;
+		this.maxConnectionsPerAddress=maxConnectionsPerAddress;
+		this.acceptRate=acceptRate;
+	}
+}
@@ -2,9 +2,13 @@ package pb.managers;
 
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -20,6 +24,19 @@ import pb.protocols.session.SessionProtocol;
 
 /**
  * Manages the connection to the server and the client's state.
+ * <br/>
+ * When the connection is lost the manager connects again. If the server
+ * agreed to the {@link SessionProtocol#sessionResume} feature, and the new
+ * connection is made within the resume window, the session carries on where
+ * it was: the events that either side missed are sent again, and the
+ * endpoint that the session started on, with the callbacks added to it,
+ * carries on being used for the session.
+ * <br/>
+ * The manager can be given several servers, e.g. replicas of the same
+ * service. It tries each in turn straight away, starting with the one it
+ * was last connected to, and only after all of them have failed does it
+ * wait, for as long as its {@link ReconnectPolicy} says, before trying
+ * them all again.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -62,32 +79,112 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the connection of a session has been lost, and the
+	 * session may yet be resumed over a new connection. Events emitted on
+	 * the endpoint are held back until then.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionSuspended="SESSION_SUSPENDED";
+	
+	/**
+	 * Emitted when a suspended session has been resumed over a new
+	 * connection. The endpoint is the one the session started on, which
+	 * carries on being used for the session.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
+	/**
+	 * Emitted when a connection to a server could not be made.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}, the server's host:port</li>
+	 * <li>{@code args[1] instanceof String}, the reason</li>
+	 * </ul>
+	 */
+	public static final String connectFailed="CONNECT_FAILED";
+	
+	/**
+	 * Emitted when a server would not start a session, as it is
+	 * overloaded, and asked the client to try again later.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}, the reason</li>
+	 * <li>{@code args[1] instanceof Long}, the time in ms that the server
+	 * asked the client to wait</li>
+	 * </ul>
+	 */
+	public static final String sessionRefused="SESSION_REFUSED";
+	
+	/**
+	 * Emitted when waiting before trying to connect again.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer}, rounds of tries that failed
+	 * in a row, 0 if the connection was lost</li>
+	 * <li>{@code args[1] instanceof Long}, the time in ms that will be waited</li>
+	 * </ul>
+	 */
+	public static final String reconnecting="RECONNECTING";
+	
+	/**
+	 * Emitted when the manager gives up trying to connect, and terminates.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer}, rounds of tries that failed</li>
+	 * </ul>
+	 */
+	public static final String reconnectFailed="RECONNECT_FAILED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
 	 */
 	private SessionProtocol sessionProtocol;
 	
+	/**
+	 * The session, if it can be resumed when the connection is lost.
+	 */
+	private volatile ResumableSession resumableSession=null;
+	
 	/**
 	 * The socket for this client.
 	 */
 	private Socket socket;
 	
 	/**
-	 * The host to connect to.
+	 * The servers to connect to, unresolved so that their names are looked
+	 * up for each try.
 	 */
-	private String host;
+	private final List<InetSocketAddress> servers;
 	
 	/**
-	 * The host's port to connect to.
+	 * How long to wait when connecting, and between tries.
 	 */
-	private int port;
+	private final ReconnectPolicy reconnectPolicy;
+	
+	/**
+	 * Whether a session was started, or resumed, since the last try.
+	 */
+	private volatile boolean sessionEstablished=false;
+	
+	/**
+	 * Time in ms that the server asked the client to wait, when it refused
+	 * the session in the last try, or -1.
+	 */
+	private volatile long refusedFor=-1;
 	
 	/**
 	 * When a connection fails, should we retry.
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * How the endpoint does its io.
+	 */
+	private final IOMode ioMode;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -96,8 +193,57 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * @throws InterruptedException
 	 */
 	public ClientManager(String host,int port) throws UnknownHostException, InterruptedException {
-		this.host=host;
-		this.port=port;
+		this(host,port,IOMode.Blocking);
+	}
+	
+	/**
+	 * Initialise the client manager with a host and port to connect to, and
+	 * the io mode. With {@link IOMode#Virtual} both this manager and its
+	 * endpoint run on virtual threads, so {@link #awaitTermination()} must
+	 * be used to wait for the manager to finish. {@link IOMode#Selector} is
+	 * a server mode, for a client it is the same as {@link IOMode#Blocking}.
+	 * @param host
+	 * @param port
+	 * @param ioMode
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public ClientManager(String host,int port,IOMode ioMode) throws UnknownHostException, InterruptedException {
+		this(host,port,ioMode,new ReconnectPolicy());
+	}
+	
+	/**
+	 * Initialise the client manager with a host and port to connect to, the
+	 * io mode and how to connect again when the connection is lost.
+	 * @param host
+	 * @param port
+	 * @param ioMode
+	 * @param reconnectPolicy
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public ClientManager(String host,int port,IOMode ioMode,ReconnectPolicy reconnectPolicy)
+			throws UnknownHostException, InterruptedException {
+		this(Collections.singletonList(InetSocketAddress.createUnresolved(host,port)),ioMode,reconnectPolicy);
+	}
+	
+	/**
+	 * Initialise the client manager with servers to connect to, any of
+	 * which will do, the io mode and how to connect again when the
+	 * connection is lost.
+	 * @param servers hosts and ports, in the order they are tried first
+	 * @param ioMode
+	 * @param reconnectPolicy
+	 */
+	public ClientManager(List<InetSocketAddress> servers,IOMode ioMode,ReconnectPolicy reconnectPolicy) {
+		if(servers.isEmpty()) throw new IllegalArgumentException("no servers given");
+		this.servers=new ArrayList<>(servers.size());
+		for(InetSocketAddress server : servers) {
+			this.servers.add(InetSocketAddress.createUnresolved(server.getHostString(),server.getPort()));
+		}
+		this.ioMode=ioMode;
+		this.reconnectPolicy=reconnectPolicy;
+		if(ioMode==IOMode.Virtual) useVirtualThread();
 	}
 	
 	@Override
@@ -107,60 +253,147 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
-			if(attemptToConnect(host,port)) {
-				// the connection ended in error, so let's just
-				// try to get it back up, transparently to the
-				// higher layer
-				try {
-					Thread.sleep(5000); // short pause before retrying
-				} catch (InterruptedException e) {
-					continue;
-				} 
-			} else {
-				// connection ended cleanly, so we can terminate this manager
-				return;
+		int failures=0; // rounds of tries that failed in a row
+		int first=0; // the server to try first
+		while(true) {
+			boolean lost=false;
+			boolean unknown=true;
+			long retryAfter=-1; // the longest that a server asked us to wait
+			for(int i=0;i<servers.size() && !lost;i++) {
+				int index=(first+i)%servers.size();
+				sessionEstablished=false;
+				switch(attemptToConnect(servers.get(index))) {
+				case Ended:
+					// connection ended cleanly, so we can terminate this manager
+					return;
+				case Lost:
+					unknown=false;
+					if(sessionEstablished) {
+						// the connection ended in error, so let's just
+						// try to get it back up, transparently to the
+						// higher layer, starting with the same server
+						first=index;
+						failures=0;
+						lost=true;
+					}
+					// else the server would not have us, try the next one
+					break;
+				case Refused:
+					// the server is busy, try the next one
+					retryAfter=Math.max(retryAfter,refusedFor);
+					unknown=false;
+					break;
+				case Failed:
+					unknown=false;
+					break;
+				case UnknownHost:
+					break;
+				}
+			}
+			if(!lost) {
+				failures++;
+				if(unknown) {
+					log.severe("no server could be found, giving up");
+					localEmit(reconnectFailed,failures);
+					break;
+				}
+			}
+			if(!reconnectPolicy.shouldRetry(failures)) {
+				log.severe("no more retries, giving up");
+				localEmit(reconnectFailed,failures);
+				break;
+			}
+			long delay=retryAfter>=0 && !lost ? reconnectPolicy.delay(failures,retryAfter)
+					: reconnectPolicy.delay(failures);
+			localEmit(reconnecting,failures,delay);
+			try {
+				Thread.sleep(delay); // pause before retrying
+			} catch (InterruptedException e) {
+				continue;
 			}
 		}
-		log.severe("no more retries, giving up");
+		ResumableSession session=resumableSession;
+		if(session!=null && session.expire()) sessionExpired(session);
 		
 	}
+	
 	/**
-	 * Attempt to connect.
-	 * @param host
-	 * @param port
-	 * @return true if we should retry to connect again or false otherwise
+	 * How an attempt to connect ended.
 	 */
-	private boolean attemptToConnect(final String host,final int port) {
+	private static enum Outcome {
+		/**
+		 * The connection was made and ended cleanly.
+		 */
+		Ended,
+		/**
+		 * The connection was made and ended in error.
+		 */
+		Lost,
+		/**
+		 * The connection was made but the server refused the session.
+		 */
+		Refused,
+		/**
+		 * The connection could not be made.
+		 */
+		Failed,
+		/**
+		 * The server's host name could not be found.
+		 */
+		UnknownHost
+	}
+	
+	/**
+	 * Attempt to connect, and wait for the connection to end.
+	 * @param server
+	 * @return how the attempt ended
+	 */
+	private Outcome attemptToConnect(final InetSocketAddress server) {
 		shouldWeRetry=false; // may be set to true by another thread
 						     // if errors occur on the connection
-		log.info("attempting to connect to "+host+":"+port);
+		refusedFor=-1;
+		String name=server.getHostString()+":"+server.getPort();
+		log.info("attempting to connect to "+name);
+		InetSocketAddress address=new InetSocketAddress(server.getHostString(),server.getPort());
+		if(address.isUnresolved()) {
+			log.warning("unknown host "+server.getHostString());
+			localEmit(connectFailed,name,"unknown host");
+			return Outcome.UnknownHost;
+		}
+		socket=new Socket();
+		try {
+			socket.connect(address,reconnectPolicy.connectTimeout);
+		} catch (IOException e) {
+			log.warning("could not connect to "+name+": "+e.getMessage());
+			localEmit(connectFailed,name,String.valueOf(e.getMessage()));
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				//ignore
+			}
+			return Outcome.Failed;
+		}
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
 			Endpoint endpoint = new Endpoint(socket,this);
+			if(ioMode==IOMode.Virtual) endpoint.useVirtualThread();
 			endpoint.start();
 
 			try {
 				// just wait for this thread to terminate
-				endpoint.join();
+				endpoint.awaitTermination();
 			} catch (InterruptedException e) {
 				// just make sure the endpoint has done everything it should
 				endpoint.close();
 			}
-		} catch (UnknownHostException e) {
-			return false; // we wont retry
-		} catch (IOException e1) {
-			shouldWeRetry=true;
 		} finally {
-			if(socket!=null)
-				try {
-					socket.close();
-				} catch (IOException e) {
-					//ignore
-				}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//ignore
+			}
 		}
-		return shouldWeRetry;
+		if(refusedFor>=0) return Outcome.Refused;
+		return shouldWeRetry ? Outcome.Lost : Outcome.Ended;
 	}
 	
 	/**
@@ -171,6 +404,10 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
 		sessionProtocol = new SessionProtocol(endpoint,this);
+		ResumableSession session=resumableSession;
+		if(session!=null && session.isSuspended()) {
+			sessionProtocol.resumeSession(session.token,session.eventProtocol.getReceived());
+		}
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -206,9 +443,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("connection with server terminated abruptly");
-		localEmit(sessionError,endpoint);
-		endpoint.close();
-		shouldWeRetry=true;
+		connectionLost(endpoint);
 	}
 
 	/**
@@ -218,7 +453,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("server sent an invalid message");
-		localEmit(sessionError,endpoint);
+		endSession();
+		localEmit(sessionError,endpoint.getSessionEndpoint());
 		endpoint.close();
 	}
 	
@@ -230,9 +466,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
-		localEmit(sessionError,endpoint);
-		endpoint.close();
-		shouldWeRetry=true;
+		connectionLost(endpoint);
 	}
 
 	/**
@@ -242,7 +476,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint,Protocol protocol) {
 		log.severe("protocol with server has been violated: "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		endSession();
+		localEmit(sessionError,endpoint.getSessionEndpoint());
 		endpoint.close();
 	}
 
@@ -253,6 +488,12 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with server");
+		sessionEstablished=true;
+		
+		// a session that was suspended could not be resumed
+		ResumableSession previous=resumableSession;
+		resumableSession=null;
+		if(previous!=null && previous.expire()) sessionExpired(previous);
 		
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
 		try {
@@ -262,6 +503,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
+		if(sessionProtocol.getResumeToken()!=null) {
+			resumableSession=new ResumableSession(sessionProtocol.getResumeToken(),endpoint,
+					(EventProtocol) endpoint.getProtocol(EventProtocol.protocolName));
+		}
+		
 		localEmit(sessionStarted,endpoint);
 	}
 
@@ -272,11 +518,103 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
-		localEmit(sessionStopped,endpoint);
+		endSession();
+		localEmit(sessionStopped,endpoint.getSessionEndpoint());
 		endpoint.close(); // this will stop all the protocols as well
 	}
 	
 
+	/**
+	 * Only the server resumes sessions.
+	 * @param endpoint
+	 * @param resumeToken
+	 * @param features
+	 * @return -1
+	 */
+	@Override
+	public long sessionResumeRequested(Endpoint endpoint, String resumeToken, Set<String> features) {
+		return -1;
+	}
+	
+	/**
+	 * The server has resumed the suspended session over the new connection,
+	 * send it the events it missed.
+	 * @param endpoint
+	 * @param received
+	 */
+	@Override
+	public void sessionResumed(Endpoint endpoint, long received) {
+		ResumableSession session=resumableSession;
+		if(session==null || !session.attach(endpoint,endpoint.getFeatures())) {
+			// expired while it was being resumed, so it has ended
+			log.severe("session could not be resumed with server");
+			resumableSession=null;
+			if(session!=null && session.expire()) sessionExpired(session);
+			endpoint.close();
+			shouldWeRetry=true;
+			return;
+		}
+		log.info("session has resumed with server");
+		sessionEstablished=true;
+		session.eventProtocol.resume(endpoint,received);
+		localEmit(sessionResumed,endpoint.getSessionEndpoint());
+	}
+	
+	/**
+	 * The server would not start the session, close the connection and try
+	 * again later. A session that is suspended stays so, and may yet be
+	 * resumed.
+	 * @param endpoint
+	 * @param reason
+	 * @param retryAfter
+	 */
+	@Override
+	public void sessionRefused(Endpoint endpoint, String reason, long retryAfter) {
+		log.warning("server refused the session: "+reason+", trying again in "+retryAfter+" ms");
+		refusedFor=Math.max(0,retryAfter);
+		localEmit(sessionRefused,reason,retryAfter);
+		endpoint.close();
+		shouldWeRetry=true;
+	}
+	
+	/**
+	 * The connection with the server has been lost. The session is
+	 * suspended if it can be resumed, otherwise it has ended in error. Either
+	 * way we try to connect again.
+	 * @param endpoint
+	 */
+	private void connectionLost(Endpoint endpoint) {
+		ResumableSession session=resumableSession;
+		if(session!=null && session.suspend(endpoint,getResumeWindow(),()->{sessionExpired(session);})) {
+			log.info("session suspended until the connection is back");
+			localEmit(sessionSuspended,endpoint.getSessionEndpoint());
+		} else if(session==null || !session.movedFrom(endpoint)) {
+			endSession();
+			localEmit(sessionError,endpoint.getSessionEndpoint());
+		}
+		endpoint.close();
+		shouldWeRetry=true;
+	}
+	
+	/**
+	 * A suspended session was not resumed in time.
+	 * @param session
+	 */
+	private void sessionExpired(ResumableSession session) {
+		if(resumableSession==session) resumableSession=null;
+		log.severe("suspended session has expired");
+		localEmit(sessionError,session.sessionEndpoint);
+	}
+	
+	/**
+	 * The session has ended, it can no longer be resumed.
+	 */
+	private void endSession() {
+		ResumableSession session=resumableSession;
+		resumableSession=null;
+		if(session!=null) session.end();
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -0,0 +1,77 @@
+package pb.managers;
+
+/**
+ * How long each phase of draining a {@link ServerManager} took, in ms, and
+ * how many endpoints there were to drain. The phases follow one another:
+ * no more connections are accepted, every session is asked to stop, the
+ * endpoints are waited for until the deadline, and those that are still
+ * open then are closed.
+ *
+ * @see {@link pb.managers.ServerManager#drain(int)}
+ * @author aaron
+ *
+ */
+public class DrainReport {
+	
+	/**
+	 * Time until no more connections were accepted.
+	 */
+	public final long acceptStopped;
+	
+	/**
+	 * Time until a stop request had been queued for every session.
+	 */
+	public final long stopsSent;
+	
+	/**
+	 * Time waiting for the endpoints to close.
+	 */
+	public final long drained;
+	
+	/**
+	 * Time closing the endpoints that were still open at the deadline.
+	 */
+	public final long forceClosed;
+	
+	/**
+	 * Endpoints that were open when connections were no longer accepted.
+	 */
+	public final int endpoints;
+	
+	/**
+	 * Endpoints that were still open at the deadline.
+	 */
+	public final int stragglers;
+	
+	/**
+	 * @param acceptStopped
+	 * @param stopsSent
+	 * @param drained
+	 * @param forceClosed
+	 * @param endpoints
+	 * @param stragglers
+	 */
+	public DrainReport(long acceptStopped, long stopsSent, long drained, long forceClosed,
+			int endpoints, int stragglers) {
+		this.acceptStopped=acceptStopped;
+		this.stopsSent=stopsSent;
+		this.drained=drained;
+		this.forceClosed=forceClosed;
+		this.endpoints=endpoints;
+		this.stragglers=stragglers;
+	}
+	
+	/**
+	 * @return the time the whole drain took, in ms
+	 */
+	public long total() {
+		return acceptStopped+stopsSent+drained+forceClosed;
+	}
+	
+	@Override
+	public String toString() {
+		return "accept stopped "+acceptStopped+"ms, stops sent "+stopsSent+"ms, drained "
+				+drained+"ms, force closed "+forceClosed+"ms; "+stragglers+" of "+endpoints
+				+" endpoints closed at the deadline";
+	}
+}
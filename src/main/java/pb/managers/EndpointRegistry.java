@@ -0,0 +1,181 @@
+package pb.managers;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import pb.managers.endpoint.Endpoint;
+
+/**
+ * The live endpoints of a manager, indexed by the id of the other endpoint
+ * and by tags that the application gives them, e.g. the name of a board
+ * that the other endpoint is listening to. Any thread can add, remove, tag
+ * and look up endpoints at any time; looking up by id or tag takes constant
+ * time, and iterating over all endpoints or those with a tag takes no locks
+ * and never copies them, though it may or may not see changes made while
+ * iterating.
+ * <br/>
+ * A manager removes its endpoints as they close, along with their tags,
+ * so the application never needs to.
+ *
+ * @see {@link pb.managers.ServerManager#getSessions()}
+ * @author aaron
+ *
+ */
+public class EndpointRegistry {
+	
+	/**
+	 * The id and the tags of a registered endpoint.
+	 */
+	private static final class Entry {
+		final String id;
+		final Set<String> tags=ConcurrentHashMap.newKeySet();
+		
+		Entry(String id) {
+			this.id=id;
+		}
+	}
+	
+	private final ConcurrentHashMap<Endpoint,Entry> endpoints=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Endpoint> byId=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Set<Endpoint>> byTag=new ConcurrentHashMap<>();
+	
+	/**
+	 * Add an endpoint, indexed by {@link Endpoint#getOtherEndpointId()}.
+	 * @param endpoint
+	 * @return false if it was already registered
+	 */
+	public boolean add(Endpoint endpoint) {
+		Entry entry=new Entry(endpoint.getOtherEndpointId());
+		if(endpoints.putIfAbsent(endpoint,entry)!=null) return false;
+		byId.put(entry.id,endpoint);
+		if(!endpoints.containsKey(endpoint)) {
+			// removed meanwhile, perhaps before it was indexed
+			byId.remove(entry.id,endpoint);
+		}
+		return true;
+	}
+	
+	/**
+	 * Remove an endpoint and all of its tags.
+	 * @param endpoint
+	 * @return false if it was not registered
+	 */
+	public boolean remove(Endpoint endpoint) {
+		Entry entry=endpoints.remove(endpoint);
+		if(entry==null) return false;
+		byId.remove(entry.id,endpoint);
+		for(String tag : entry.tags) {
+			removeFromTag(endpoint,tag);
+		}
+		return true;
+	}
+	
+	/**
+	 * @param endpoint
+	 * @return true if the endpoint is registered
+	 */
+	public boolean contains(Endpoint endpoint) {
+		return endpoints.containsKey(endpoint);
+	}
+	
+	/**
+	 * @param id of the other endpoint, as given by
+	 * {@link Endpoint#getOtherEndpointId()}
+	 * @return the endpoint, or null if none is registered with the id
+	 */
+	public Endpoint get(String id) {
+		return byId.get(id);
+	}
+	
+	/**
+	 * Give a registered endpoint a tag.
+	 * @param endpoint
+	 * @param tag
+	 * @return false if the endpoint is not registered
+	 */
+	public boolean tag(Endpoint endpoint, String tag) {
+		Entry entry=endpoints.get(endpoint);
+		if(entry==null) return false;
+		entry.tags.add(tag);
+		byTag.compute(tag,(key,tagged)->{
+			if(tagged==null) tagged=ConcurrentHashMap.newKeySet();
+			tagged.add(endpoint);
+			return tagged;
+		});
+		if(!endpoints.containsKey(endpoint)) {
+			// removed meanwhile, perhaps without seeing the new tag
+			removeFromTag(endpoint,tag);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Take a tag from an endpoint.
+	 * @param endpoint
+	 * @param tag
+	 * @return false if the endpoint did not have the tag
+	 */
+	public boolean untag(Endpoint endpoint, String tag) {
+		Entry entry=endpoints.get(endpoint);
+		if(entry==null || !entry.tags.remove(tag)) return false;
+		removeFromTag(endpoint,tag);
+		return true;
+	}
+	
+	/**
+	 * Drop the set of a tag once it is empty, so that tags do not pile up.
+	 * @param endpoint
+	 * @param tag
+	 */
+	private void removeFromTag(Endpoint endpoint, String tag) {
+		byTag.computeIfPresent(tag,(key,tagged)->{
+			tagged.remove(endpoint);
+			return tagged.isEmpty() ? null : tagged;
+		});
+	}
+	
+	/**
+	 * @param tag
+	 * @return the endpoints with the tag, which can be iterated without
+	 * locking, empty if there are none
+	 */
+	public Set<Endpoint> tagged(String tag) {
+		Set<Endpoint> tagged=byTag.get(tag);
+		return tagged==null ? Collections.emptySet() : Collections.unmodifiableSet(tagged);
+	}
+	
+	/**
+	 * @param endpoint
+	 * @return the tags of the endpoint, empty if it is not registered
+	 */
+	public Set<String> tagsOf(Endpoint endpoint) {
+		Entry entry=endpoints.get(endpoint);
+		return entry==null ? Collections.emptySet() : Collections.unmodifiableSet(entry.tags);
+	}
+	
+	/**
+	 * @return all of the registered endpoints, which can be iterated without
+	 * locking
+	 */
+	public Set<Endpoint> endpoints() {
+		return Collections.unmodifiableSet(endpoints.keySet());
+	}
+	
+	/**
+	 * Call the action for every registered endpoint.
+	 * @param action
+	 */
+	public void forEach(Consumer<Endpoint> action) {
+		endpoints.keySet().forEach(action);
+	}
+	
+	/**
+	 * @return the number of registered endpoints
+	 */
+	public int size() {
+		return endpoints.size();
+	}
+}
@@ -2,18 +2,49 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
- * {@link pb.managers.ServerManager#acceptClient(Socket)}. Note that the
+ * {@link pb.managers.ServerManager#acceptClients(List)}. Note that the
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
+ * <br/>
+ * Connections are accepted by one or more acceptors, this thread being the
+ * first of them. Each acceptor accepts up to {@link #acceptBatch} connections
+ * in one go before handing them on, so that a burst of connections, e.g. many
+ * clients reconnecting at once, costs one hand over per batch rather than one
+ * per connection. When there is more than one acceptor and the platform
+ * supports {@link StandardSocketOptions#SO_REUSEPORT}, each acceptor listens
+ * on a server socket of its own bound to the same port, and the operating
+ * system spreads the connections over them; otherwise the acceptors share a
+ * single server socket.
+ * <br/>
+ * When the server manager is using {@link pb.managers.Manager.IOMode#Selector}
+ * the server sockets are channels, so that every accepted socket has a
+ * channel that can be handed to a selector loop, and each acceptor waits on a
+ * selector of its own for connections to be ready. In the blocking io modes
+ * they are plain server sockets, as the streams of a channel's socket share a
+ * lock on Java 11, so that an endpoint's reader would hold up its writer.
+ * There an acceptor blocks until a connection arrives, and then takes those
+ * that follow within {@link #acceptLinger} ms of each other.
  * 
  * @see {@link pb.managers.ServerManager}
  * @author aaron
@@ -21,9 +52,6 @@ import java.util.logging.Logger;
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket=null;
-	private int port;
-	private ServerManager serverManager;
 	
 	/**
 	 * Emitted when the io thread has started. The argument
@@ -35,6 +63,60 @@ public class IOThread extends Thread {
 	 */
 	public static final String ioThread = "IO_THREAD";
 	
+	/**
+	 * Default number of connections that can be waiting to be accepted,
+	 * the operating system may allow fewer.
+	 */
+	public static final int defaultBacklog = 1024;
+	
+	/**
+	 * Most connections that an acceptor accepts before handing them on.
+	 */
+	public static final int acceptBatch = 64;
+	
+	/**
+	 * Longest time, in ms, that an acceptor in a blocking io mode waits for
+	 * another connection before handing on those it has accepted.
+	 */
+	public static final int acceptLinger = 1;
+	
+	/**
+	 * The server sockets in {@link Manager.IOMode#Selector}, one per acceptor
+	 * or a single shared one, otherwise null.
+	 */
+	private final ServerSocketChannel[] serverChannels;
+	
+	/**
+	 * The selector of each acceptor in {@link Manager.IOMode#Selector},
+	 * otherwise null.
+	 */
+	private final Selector[] selectors;
+	
+	/**
+	 * The server sockets in the blocking io modes, one per acceptor or a
+	 * single shared one, otherwise null.
+	 */
+	private final ServerSocket[] serverSockets;
+	
+	/**
+	 * Held while accepting a batch from the server socket of the same index,
+	 * as the time an accept waits is set on the server socket itself.
+	 */
+	private final ReentrantLock[] acceptLocks;
+	
+	/**
+	 * The acceptors other than this thread.
+	 */
+	private final Thread[] acceptors;
+	
+	private final int port;
+	private final ServerManager serverManager;
+	
+	/**
+	 * Set to true to make the acceptors terminate.
+	 */
+	private volatile boolean shutDown=false;
+	
 	/**
 	 * Initialise the IOThread with a port number to listen on and reference
 	 * to the {@link pb.managers.ServerManager}.
@@ -43,53 +125,249 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
-		this.port=port;
+		this(port,serverManager,Manager.IOMode.Blocking);
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on, reference
+	 * to the {@link pb.managers.ServerManager} and the io mode that accepted
+	 * sockets will be used with.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param ioMode of the server manager
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, Manager.IOMode ioMode) throws IOException{
+		this(port,serverManager,ioMode,1,defaultBacklog);
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on, reference
+	 * to the {@link pb.managers.ServerManager}, the io mode that accepted
+	 * sockets will be used with, the number of acceptors and the listen
+	 * backlog.
+	 * @param port to listen on, or 0 for any free port
+	 * @param serverManager to send connections to
+	 * @param ioMode of the server manager
+	 * @param numAcceptors number of threads accepting connections, at least 1
+	 * @param backlog number of connections that can be waiting to be accepted,
+	 * per server socket
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, Manager.IOMode ioMode,
+			int numAcceptors, int backlog) throws IOException{
+		// let's throw these since its potentially unrecoverable
+		int count = Math.max(1,numAcceptors);
+		acceptors = new Thread[count-1];
+		if(ioMode==Manager.IOMode.Selector) {
+			serverSockets = null;
+			acceptLocks = null;
+			selectors = new Selector[count];
+			ServerSocketChannel first = ServerSocketChannel.open();
+			boolean reusePort = count>1 &&
+					first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			serverChannels = new ServerSocketChannel[reusePort?count:1];
+			serverChannels[0] = first;
+			try {
+				for(int i=0;i<serverChannels.length;i++) {
+					if(i>0) serverChannels[i] = ServerSocketChannel.open();
+					if(reusePort) serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT,true);
+					// the others bind to the port that the first was given
+					serverChannels[i].bind(new InetSocketAddress(i==0?port:
+						((InetSocketAddress)first.getLocalAddress()).getPort()),backlog);
+					serverChannels[i].configureBlocking(false);
+				}
+				for(int i=0;i<selectors.length;i++) {
+					selectors[i] = Selector.open();
+					serverChannels[i%serverChannels.length].register(selectors[i],SelectionKey.OP_ACCEPT);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			this.port=((InetSocketAddress)first.getLocalAddress()).getPort();
+		} else {
+			serverChannels = null;
+			selectors = null;
+			ServerSocket first = new ServerSocket();
+			boolean reusePort = count>1 &&
+					first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			serverSockets = new ServerSocket[reusePort?count:1];
+			acceptLocks = new ReentrantLock[serverSockets.length];
+			serverSockets[0] = first;
+			try {
+				for(int i=0;i<serverSockets.length;i++) {
+					if(i>0) serverSockets[i] = new ServerSocket();
+					if(reusePort) serverSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT,true);
+					// the others bind to the port that the first was given
+					serverSockets[i].bind(new InetSocketAddress(i==0?port:first.getLocalPort()),backlog);
+					acceptLocks[i] = new ReentrantLock();
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			this.port=first.getLocalPort();
+		}
 		this.serverManager=serverManager;
 		setName("IOThread");
 		start();
 	}
 	
+	/**
+	 * @return the port that connections are accepted on
+	 */
+	public int getPort() {
+		return port;
+	}
+	
 	/**
 	 * Close the server socket and make sure the thread terminates.
 	 */
 	public void shutDown() {
-		if(serverSocket!=null)
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				log.warning("exception closing server socket: "+e.getMessage());
-			}
+		shutDown=true;
+		close();
 		interrupt();
 	}
 	
 	/**
-	 * Listen for connections and pass them to the ServerManager.
+	 * Close the selectors and server sockets, closing a selector or a plain
+	 * server socket wakes its acceptor.
+	 */
+	private void close() {
+		if(selectors!=null) {
+			for(Selector selector : selectors) {
+				if(selector!=null)
+					try {
+						selector.close();
+					} catch (IOException e) {
+						log.warning("exception closing selector: "+e.getMessage());
+					}
+			}
+		}
+		if(serverChannels!=null) {
+			for(ServerSocketChannel serverChannel : serverChannels) {
+				if(serverChannel!=null)
+					try {
+						serverChannel.close();
+					} catch (IOException e) {
+						log.warning("exception closing server socket: "+e.getMessage());
+					}
+			}
+		}
+		if(serverSockets!=null) {
+			for(ServerSocket serverSocket : serverSockets) {
+				if(serverSocket!=null)
+					try {
+						serverSocket.close();
+					} catch (IOException e) {
+						log.warning("exception closing server socket: "+e.getMessage());
+					}
+			}
+		}
+	}
+	
+	/**
+	 * Start the other acceptors, listen for connections and pass them to
+	 * the ServerManager, and wait for the other acceptors to terminate.
 	 */
 	@Override
 	public void run() {
-		log.info("listening for connections on port "+port);
+		log.info("listening for connections on port "+port+" with "+(acceptors.length+1)+
+				" acceptor(s) and "+(serverChannels!=null?serverChannels.length:serverSockets.length)+
+				" server socket(s)");
+		for(int i=0;i<acceptors.length;i++) {
+			final int acceptor=i+1;
+			acceptors[i]=new Thread(()->{accept(acceptor);},"IOThread-"+acceptor);
+			acceptors[i].start();
+		}
 		try {
 			serverManager.emit(ioThread,InetAddress.getLocalHost().getHostAddress()+":"+port);
 		} catch (UnknownHostException e1) {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
-			Socket clientSocket;
+		accept(0);
+		shutDown=true;
+		close();
+		for(Thread acceptor : acceptors) {
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				// the acceptors have been woken and will terminate anyway
+			}
+		}
+		log.info("IOThread terminating");
+	}
+	
+	/**
+	 * Accept connections in batches until shut down.
+	 * @param acceptor index of the acceptor
+	 */
+	private void accept(int acceptor) {
+		if(serverSockets!=null) {
+			acceptSockets(acceptor);
+		} else {
+			acceptChannels(acceptor);
+		}
+	}
+	
+	/**
+	 * Accept connections in batches from a server channel, once its
+	 * selector says that they are ready.
+	 * @param acceptor index of the acceptor
+	 */
+	private void acceptChannels(int acceptor) {
+		Selector selector = selectors[acceptor];
+		ServerSocketChannel serverChannel = serverChannels[acceptor%serverChannels.length];
+		while(!shutDown && !(acceptor==0 && isInterrupted())) {
+			List<Socket> batch = new ArrayList<>();
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
+				selector.select();
+				selector.selectedKeys().clear();
+				SocketChannel channel;
+				while(batch.size()<acceptBatch && (channel=serverChannel.accept())!=null) {
+					batch.add(channel.socket());
+				}
+			} catch (ClosedSelectorException | ClosedChannelException e) {
+				break;
 			} catch (IOException e) {
 				log.warning("exception accepting connection: "+e.getMessage());
-			} 
+			}
+			// hand on what was accepted, even if accepting more failed
+			if(!batch.isEmpty()) serverManager.acceptClients(batch);
 		}
-		log.info("IOThread terminating");
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+	}
+	
+	/**
+	 * Accept connections in batches from a plain server socket, waiting for
+	 * the first of each batch and then at most {@link #acceptLinger} ms for
+	 * each of the others. Acceptors that share the server socket take turns,
+	 * but hand on their batches at the same time.
+	 * @param acceptor index of the acceptor
+	 */
+	private void acceptSockets(int acceptor) {
+		ServerSocket serverSocket = serverSockets[acceptor%serverSockets.length];
+		ReentrantLock acceptLock = acceptLocks[acceptor%serverSockets.length];
+		boolean closed = false;
+		while(!closed && !shutDown && !(acceptor==0 && isInterrupted())) {
+			List<Socket> batch = new ArrayList<>();
+			acceptLock.lock();
+			try {
+				serverSocket.setSoTimeout(0);
+				batch.add(serverSocket.accept());
+				serverSocket.setSoTimeout(acceptLinger);
+				while(batch.size()<acceptBatch) batch.add(serverSocket.accept());
+			} catch (SocketTimeoutException e) {
+				// no more are waiting
+			} catch (IOException e) {
+				closed = serverSocket.isClosed();
+				if(!closed) log.warning("exception accepting connection: "+e.getMessage());
+			} finally {
+				acceptLock.unlock();
+			}
+			// hand on what was accepted, even if accepting more failed
+			if(!batch.isEmpty()) serverManager.acceptClients(batch);
 		}
 	}
 }
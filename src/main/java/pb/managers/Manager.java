@@ -1,10 +1,16 @@
 package pb.managers;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.IEndpointHandler;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveSweeper;
+import pb.protocols.session.SessionProtocol;
 import pb.utils.Eventable;
 
 /**
@@ -17,6 +23,90 @@ import pb.utils.Eventable;
  */
 public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
 	
+	/**
+	 * How endpoints do their io.
+	 */
+	static public enum IOMode {
+		/**
+		 * Each endpoint is a thread that does blocking reads on its socket.
+		 */
+		Blocking,
+		/**
+		 * Endpoints share a small pool of selector loop threads that
+		 * read and write non-blocking socket channels. Only used by
+		 * the server manager.
+		 */
+		Selector,
+		/**
+		 * Each endpoint does blocking reads on its socket, as for
+		 * {@link #Blocking}, but on a virtual thread (Java 21 or later).
+		 */
+		Virtual
+	}
+	
+	/**
+	 * Optional features that this manager offers (as a client) or accepts
+	 * (as a server) when a session starts. A feature is only used on an
+	 * endpoint when both ends have it.
+	 */
+	private final Set<String> features;
+	
+	/**
+	 * Checks the keep alive protocols of all of this manager's endpoints.
+	 */
+	private final KeepAliveSweeper keepAliveSweeper = new KeepAliveSweeper();
+	
+	/**
+	 * Time in ms after the connection of a session is lost that the
+	 * session can still be resumed, when the
+	 * {@link SessionProtocol#sessionResume} feature was agreed.
+	 */
+	private volatile int resumeWindow = 30000;
+	
+	public Manager() {
+		features = ConcurrentHashMap.newKeySet();
+		features.add(Endpoint.binaryFraming);
+		features.add(Endpoint.binaryCodec);
+		features.add(EventProtocol.eventWindow);
+		features.add(EventProtocol.eventBatch);
+		features.add(EventProtocol.eventIds);
+		features.add(KeepAliveProtocol.keepAliveTraffic);
+		features.add(SessionProtocol.sessionResume);
+	}
+	
+	/**
+	 * Features can be removed from, or added to, the returned set before
+	 * sessions are started.
+	 * @return the live set of features this manager supports
+	 */
+	public Set<String> getFeatures() {
+		return features;
+	}
+	
+	/**
+	 * @return the sweeper that checks the keep alive protocols of this
+	 * manager's endpoints
+	 */
+	public KeepAliveSweeper getKeepAliveSweeper() {
+		return keepAliveSweeper;
+	}
+	
+	/**
+	 * @return time in ms after the connection of a session is lost that
+	 * the session can still be resumed
+	 */
+	public int getResumeWindow() {
+		return resumeWindow;
+	}
+	
+	/**
+	 * @param resumeWindow time in ms after the connection of a session is
+	 * lost that the session can still be resumed
+	 */
+	public void setResumeWindow(int resumeWindow) {
+		this.resumeWindow = resumeWindow;
+	}
+	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
 	 */
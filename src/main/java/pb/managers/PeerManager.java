@@ -163,7 +163,7 @@ public class PeerManager extends Manager {
 	public void joinWithClientManagers() {
 		clientManagers.forEach((clientManager)->{
 			try {
-				clientManager.join();
+				clientManager.awaitTermination();
 			} catch (InterruptedException e) {
 				log.warning("could not join with client manager");
 			}
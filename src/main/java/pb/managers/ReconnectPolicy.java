@@ -0,0 +1,112 @@
+package pb.managers;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a {@link ClientManager} connects, and connects again when it could not
+ * connect or the connection was lost. After every server has been tried and
+ * none could be connected to, the client waits a random time of up to
+ * {@link #baseDelay} ms doubled for each such round that failed in a row,
+ * but never more than {@link #maxDelay} ms, before trying again; i.e.
+ * exponential backoff with full jitter, so that many clients that lost their
+ * connections at the same moment do not all connect again at the same
+ * moment. The count starts again once a session has started.
+ * <br/>
+ * The fields can be changed before the client manager is started, and
+ * {@link #delay(int)} can be overridden for other policies.
+ *
+ * @see {@link pb.managers.ClientManager}
+ * @author aaron
+ *
+ */
+public class ReconnectPolicy {
+	
+	/**
+	 * Most time in ms to wait before the first try after a connection was
+	 * lost, doubled for every round of tries that failed.
+	 */
+	public int baseDelay = 1000;
+	
+	/**
+	 * Most time in ms to wait between rounds of tries.
+	 */
+	public int maxDelay = 30000;
+	
+	/**
+	 * Time in ms to wait for a connection to a server to be made.
+	 */
+	public int connectTimeout = 10000;
+	
+	/**
+	 * Rounds of tries that can fail in a row before giving up, or -1 to
+	 * never give up.
+	 */
+	public int maxRetries = 10;
+	
+	/**
+	 * A policy with the default settings.
+	 */
+	public ReconnectPolicy() {
+		
+	}
+	
+	/**
+	 * @param baseDelay
+	 * @param maxDelay
+	 * @param connectTimeout
+	 * @param maxRetries
+	 */
+	public ReconnectPolicy(int baseDelay, int maxDelay, int connectTimeout, int maxRetries) {
+		this.baseDelay=baseDelay;
+		this.maxDelay=maxDelay;
+		this.connectTimeout=connectTimeout;
+		this.maxRetries=maxRetries;
+	}
+	
+	/**
+	 * A policy that always waits the same time between rounds of tries.
+	 * @param delay in ms
+	 * @param maxRetries
+	 * @return the policy
+	 */
+	public static ReconnectPolicy fixed(int delay, int maxRetries) {
+		return new ReconnectPolicy(delay,delay,10000,maxRetries) {
+			@Override
+			public long delay(int failures) {
+				return baseDelay;
+			}
+		};
+	}
+	
+	/**
+	 * @param failures rounds of tries that failed in a row, 0 after a
+	 * connection was lost
+	 * @return time in ms to wait before the next round of tries
+	 */
+	public long delay(int failures) {
+		long ceiling = Math.min(maxDelay, (long)baseDelay<<Math.min(failures,30));
+		if(ceiling<=0) return 0;
+		return ThreadLocalRandom.current().nextLong(ceiling+1);
+	}
+	
+	/**
+	 * @param failures rounds of tries that failed in a row
+	 * @param retryAfter time in ms that a server that refused the session
+	 * asked the client to wait
+	 * @return time in ms to wait before the next round of tries, at least
+	 * retryAfter
+	 */
+	public long delay(int failures, long retryAfter) {
+		// clients refused at the same moment should not all come back together
+		long spread = retryAfter+ThreadLocalRandom.current().nextLong(retryAfter/2+1);
+		return Math.max(delay(failures), spread);
+	}
+	
+	/**
+	 * @param failures rounds of tries that failed in a row
+	 * @return true if there should be another round
+	 */
+	public boolean shouldRetry(int failures) {
+		return maxRetries<0 || failures<=maxRetries;
+	}
+}
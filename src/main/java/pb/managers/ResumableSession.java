@@ -0,0 +1,191 @@
+package pb.managers;
+
+import java.util.Set;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.protocols.event.EventProtocol;
+import pb.utils.HashedWheelTimer;
+import pb.utils.Utils;
+
+/**
+ * A session that can carry on over a new connection when its connection is
+ * lost, kept by a manager when the
+ * {@link pb.protocols.session.SessionProtocol#sessionResume} feature was
+ * agreed. When the connection is lost the session is suspended: its event
+ * protocol is taken off the endpoint and holds back the events emitted on it.
+ * If the session is resumed within the resume window, the event protocol
+ * is moved to the new endpoint, which shares the callbacks of the endpoint
+ * the session started on; otherwise the session expires.
+ * <br/>
+ * The endpoint that the session started on stays the one that the
+ * application knows the session by, see
+ * {@link pb.managers.endpoint.Endpoint#getSessionEndpoint()}.
+ *
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @see {@link pb.protocols.event.EventProtocol#suspend()}
+ * @author aaron
+ *
+ */
+class ResumableSession {
+	private static Logger log = Logger.getLogger(ResumableSession.class.getName());
+	
+	/**
+	 * The token for resuming the session.
+	 */
+	final String token;
+	
+	/**
+	 * The endpoint that the session was started on.
+	 */
+	final Endpoint sessionEndpoint;
+	
+	/**
+	 * The event protocol, which moves with the session.
+	 */
+	final EventProtocol eventProtocol;
+	
+	/**
+	 * The endpoint that the session is on, or null while it is suspended.
+	 */
+	private Endpoint endpoint;
+	
+	/**
+	 * Expires the session if it is not resumed in time.
+	 */
+	private HashedWheelTimer.Timeout expiry=null;
+	
+	/**
+	 * Whether the session has expired, or ended.
+	 */
+	private boolean expired=false;
+	
+	/**
+	 * @param token
+	 * @param endpoint the endpoint the session started on
+	 * @param eventProtocol
+	 */
+	ResumableSession(String token, Endpoint endpoint, EventProtocol eventProtocol) {
+		this.token=token;
+		this.sessionEndpoint=endpoint;
+		this.eventProtocol=eventProtocol;
+		this.endpoint=endpoint;
+	}
+	
+	/**
+	 * @return the endpoint that the session is on, or null while it is
+	 * suspended
+	 */
+	synchronized Endpoint getEndpoint() {
+		return endpoint;
+	}
+	
+	/**
+	 * @return true if the session is suspended and can still be resumed
+	 */
+	synchronized boolean isSuspended() {
+		return endpoint==null && !expired && eventProtocol.isResumable();
+	}
+	
+	/**
+	 * The connection of the endpoint has been lost, suspend the session
+	 * until it is resumed or the resume window has passed.
+	 * @param endpoint
+	 * @param resumeWindow ms to wait for the session to be resumed
+	 * @param onExpiry called if the session expires
+	 * @return false if the session is not on the endpoint or cannot be resumed
+	 */
+	synchronized boolean suspend(Endpoint endpoint, int resumeWindow, Runnable onExpiry) {
+		if(this.endpoint!=endpoint || this.expired || !eventProtocol.isResumable()) return false;
+		detach();
+		try {
+			expiry=Utils.getInstance().setTimeout(()->{
+				if(expire()) onExpiry.run();
+			}, resumeWindow);
+		} catch (IllegalStateException e) {
+			log.warning("timer has been cleaned up, session cannot be resumed");
+			this.expired=true;
+			eventProtocol.stopProtocol();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Take the event protocol off the endpoint, called while holding the lock.
+	 */
+	private void detach() {
+		endpoint.releaseProtocol(EventProtocol.protocolName);
+		eventProtocol.suspend();
+		endpoint=null;
+	}
+	
+	/**
+	 * Move the session to a new endpoint, that is resuming it. If the
+	 * session is still on an endpoint, which must have lost its connection
+	 * without noticing, it is taken from that endpoint and the endpoint is
+	 * closed.
+	 * @param endpoint
+	 * @param features the features agreed for the new endpoint
+	 * @return true if the session was moved, false if it cannot be resumed
+	 */
+	synchronized boolean attach(Endpoint endpoint, Set<String> features) {
+		if(expired || !eventProtocol.isResumable()) return false;
+		// the event protocol must carry on in the same way
+		for(String feature : new String[] {EventProtocol.eventWindow,EventProtocol.eventIds}) {
+			if(features.contains(feature)!=sessionEndpoint.hasFeature(feature)) return false;
+		}
+		try {
+			endpoint.handleProtocol(eventProtocol);
+		} catch (ProtocolAlreadyRunning e) {
+			return false;
+		}
+		Endpoint previous=this.endpoint;
+		if(previous!=null) {
+			detach();
+			// closing may wait for the socket, so not while holding the lock
+			Utils.getInstance().setTimeout(()->{
+				previous.close();
+			}, 0);
+		}
+		if(expiry!=null) {
+			expiry.cancel();
+			expiry=null;
+		}
+		endpoint.resumeSession(sessionEndpoint);
+		this.endpoint=endpoint;
+		return true;
+	}
+	
+	/**
+	 * @param endpoint
+	 * @return true if the session has moved from the endpoint to another,
+	 * or is suspended, and has not expired
+	 */
+	synchronized boolean movedFrom(Endpoint endpoint) {
+		return !expired && this.endpoint!=endpoint;
+	}
+	
+	/**
+	 * Expire the session if it is suspended.
+	 * @return true if it was expired
+	 */
+	synchronized boolean expire() {
+		if(endpoint!=null || expired) return false;
+		expired=true;
+		eventProtocol.stopProtocol();
+		return true;
+	}
+	
+	/**
+	 * The session has ended, it can no longer be resumed.
+	 */
+	synchronized void end() {
+		expired=true;
+		if(expiry!=null) {
+			expiry.cancel();
+			expiry=null;
+		}
+	}
+}
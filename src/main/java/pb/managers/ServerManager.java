@@ -1,21 +1,37 @@
 package pb.managers;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.SelectorPool;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
+import pb.protocols.SharedStrings;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.KeyedExecutor;
+import pb.utils.Utils;
 
 
 /**
@@ -56,13 +72,68 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	
 	/**
 	 * Emitted when a session has stopped in error and can no longer
-	 * be used.
+	 * be used, e.g. when it was too slow to keep up with broadcasts.
 	 * <ul>
 	 * <li>{@code args[0] instanceof Endpoint}</li>
 	 * </ul>
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the connection of a session has been lost, and the
+	 * client may yet resume the session. Events emitted on the endpoint are
+	 * held back until then.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionSuspended="SESSION_SUSPENDED";
+	
+	/**
+	 * Emitted when a suspended session has been resumed by the client over
+	 * a new connection. The endpoint is the one the session started on,
+	 * which carries on being used for the session.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
+	/**
+	 * Emitted when a new connection is turned away by the admission
+	 * policy. Emitted by the thread that accepted the connection, so
+	 * callbacks should be quick.
+	 * <ul>
+	 * <li>{@code args[0] instanceof InetAddress}, where the connection
+	 * came from</li>
+	 * <li>{@code args[1] instanceof String}, the reason, one of
+	 * {@link AdmissionPolicy#tooManyConnections},
+	 * {@link AdmissionPolicy#tooManyFromAddress} or
+	 * {@link AdmissionPolicy#acceptRateExceeded}</li>
+	 * </ul>
+	 */
+	public static final String connectionRefused="CONNECTION_REFUSED";
+	
+	/**
+	 * Emitted when the server starts turning new connections away, after
+	 * admitting them.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}, the reason for the first
+	 * connection turned away</li>
+	 * </ul>
+	 */
+	public static final String sheddingStarted="SHEDDING_STARTED";
+	
+	/**
+	 * Emitted when the server admits a new connection again, after turning
+	 * connections away.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer}, the number of connections
+	 * turned away in the meantime</li>
+	 * </ul>
+	 */
+	public static final String sheddingStopped="SHEDDING_STOPPED";
+	
 	/**
 	 * Emitted when a session should shutdown. Message is reason
 	 * for shutting down.
@@ -90,6 +161,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String vaderShutdownServer="SERVER_VADER_SHUTDOWN";
 	
+	/**
+	 * Emitted when a session should shutdown, and will request sessions
+	 * to stop and close the connections of those that have not stopped by
+	 * the drain deadline. Message is reason for shutting down.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String drainServer="SERVER_DRAIN";
+	
+	/**
+	 * Emitted when the server has been drained and is about to terminate,
+	 * see {@link #drain(int)}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof DrainReport}</li>
+	 * </ul>
+	 */
+	public static final String serverDrained="SERVER_DRAINED";
+	
 	
 	/**
 	 * The io thread accepts connections and informs the server manager
@@ -97,13 +187,141 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private IOThread ioThread;
 	
+	/**
+	 * Number of threads accepting connections, and number of connections
+	 * that can be waiting to be accepted, see {@link IOThread}.
+	 */
+	private volatile int acceptors=1;
+	private volatile int backlog=IOThread.defaultBacklog;
+	
+	/**
+	 * Which new connections are admitted, and the counts for deciding so.
+	 */
+	private volatile AdmissionPolicy admissionPolicy=new AdmissionPolicy();
+	private AdmissionControl admission;
+	
+	/**
+	 * Connections that were admitted, with the addresses they came from,
+	 * and those that were not and are being told to try again later, with
+	 * the reasons.
+	 */
+	private final ConcurrentHashMap<Endpoint,InetAddress> admitted=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Endpoint,String> refusing=new ConcurrentHashMap<>();
+	
+	/**
+	 * Whether new connections are being turned away, and how many have been.
+	 */
+	private final AtomicBoolean shedding=new AtomicBoolean();
+	private final AtomicInteger turnedAway=new AtomicInteger();
+	
+	/**
+	 * How the endpoints of this server do their io.
+	 */
+	private final IOMode ioMode;
+	
+	/**
+	 * The selector loops that endpoints are spread over when the io mode
+	 * is {@link IOMode#Selector}, null otherwise.
+	 */
+	private SelectorPool selectorPool=null;
+	
 	/**
 	 * Keep a track of endpoints that
 	 * have not yet terminated, so that we can wait/ask/force for them to finish
 	 * before completely terminating. This object can be called by multiple
-	 * endpoint threads and this server manager thread; so synchronized is needed.
+	 * endpoint threads and this server manager thread, without locking.
+	 */
+	private final EndpointRegistry liveEndpoints=new EndpointRegistry();
+	
+	/**
+	 * The endpoints of the sessions that have started and not yet ended,
+	 * for the application to look up and tag.
+	 */
+	private final EndpointRegistry sessions=new EndpointRegistry();
+	
+	/**
+	 * Default for {@link #setMaxBroadcastBacklog(int)}.
+	 */
+	public static final int defaultMaxBroadcastBacklog=4096;
+	
+	/**
+	 * Most broadcasts that wait for a session whose endpoint is not
+	 * writable, over which the session is too slow and is closed.
+	 */
+	private volatile int maxBroadcastBacklog=defaultMaxBroadcastBacklog;
+	
+	/**
+	 * Broadcasts waiting for the endpoint of a session to become writable
+	 * again, in order, by session endpoint. Each is only used in the
+	 * session's sending lane of the event executor.
+	 */
+	private final ConcurrentHashMap<Endpoint,ArrayDeque<Broadcast>> backlogs=new ConcurrentHashMap<>();
+	
+	/**
+	 * The key of an endpoint's lane of the event executor for broadcasts and
+	 * stop requests, or for closing it, apart from the lane that its received
+	 * events may be handled in. Closing has a lane of its own so that it is
+	 * not held up behind a send that is waiting for the endpoint.
+	 */
+	private static final class EndpointLane {
+		static final String sending="sending to";
+		static final String closing="closing";
+		final Endpoint endpoint;
+		final String use;
+		
+		EndpointLane(Endpoint endpoint, String use) {
+			this.endpoint=endpoint;
+			this.use=use;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof EndpointLane && ((EndpointLane) o).endpoint==endpoint
+					&& ((EndpointLane) o).use.equals(use);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31*System.identityHashCode(endpoint)+use.hashCode();
+		}
+		
+		@Override
+		public String toString() {
+			return use+" "+endpoint.getOtherEndpointId();
+		}
+	}
+	
+	/**
+	 * An event given to many sessions, whose data stays shared until every
+	 * one of them has encoded it, or dropped it.
+	 */
+	private static final class Broadcast {
+		final String eventName;
+		final String eventData;
+		private final boolean shared;
+		private final AtomicInteger pending;
+		
+		Broadcast(String eventName, String eventData, int recipients) {
+			this.eventName=eventName;
+			this.eventData=eventData;
+			shared=SharedStrings.share(eventData);
+			pending=new AtomicInteger(recipients);
+		}
+		
+		/**
+		 * One of the sessions has encoded the event, or dropped it.
+		 */
+		void encoded() {
+			if(pending.decrementAndGet()==0 && shared) SharedStrings.release(eventData);
+		}
+	}
+	
+	/**
+	 * Sessions that can be resumed, by resume token and by the endpoint
+	 * that the session started on.
 	 */
-	private final Set<Endpoint> liveEndpoints;
+	private final ConcurrentHashMap<String,ResumableSession> resumeTokens=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Endpoint,ResumableSession> resumableSessions=new ConcurrentHashMap<>();
 	
 	/**
 	 * The port for this server.
@@ -120,6 +338,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private volatile boolean vaderShutdown=false;
 	
+	/**
+	 * Time in ms from a drain being called until the endpoints that are
+	 * still open are closed, or -1 if the server is not being drained; and
+	 * {@link System#nanoTime()} when it was called.
+	 */
+	private volatile int drainDeadline=-1;
+	private volatile long drainStarted;
+	
+	/**
+	 * Deadline for a drain asked for by an admin client.
+	 */
+	private volatile int drainTimeout=10000;
+	
+	/**
+	 * Signalled when the last live endpoint has closed.
+	 */
+	private final ReentrantLock closedLock=new ReentrantLock();
+	private final Condition allClosed=closedLock.newCondition();
+	
 	/**
 	 * Password if given
 	 */
@@ -130,8 +367,18 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param port to use when creating the io thread
 	 */
 	public ServerManager(int port) {
+		this(port,IOMode.Blocking);
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on
+	 * and the io mode for the endpoints.
+	 * @param port to use when creating the io thread
+	 * @param ioMode thread per connection, selector loops or virtual threads
+	 */
+	public ServerManager(int port,IOMode ioMode) {
 		this.port=port;
-		liveEndpoints=new HashSet<>();
+		this.ioMode=ioMode;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
@@ -142,10 +389,19 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
-		this.port=port;
-		liveEndpoints=new HashSet<>();
+		this(port,password,IOMode.Blocking);
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * a password and the io mode for the endpoints.
+	 * @param port to use when creating the io thread
+	 * @param password to use by admin clients
+	 * @param ioMode thread per connection, selector loops or virtual threads
+	 */
+	public ServerManager(int port,String password,IOMode ioMode) {
+		this(port,ioMode);
 		this.password = password;
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
 	/**
@@ -172,6 +428,122 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		log.warning("server vader shutdown called");
 		vaderShutdown=true; // this will just close all of the endpoints abruptly
 		ioThread.shutDown();
+		wakeWaiter();
+	}
+	
+	/**
+	 * Stop accepting connections, ask every session to stop, all at once,
+	 * and close the connections of those that have not stopped within the
+	 * deadline. Returns at once; {@link #serverDrained} is emitted with the
+	 * time each phase took when it is done, and then the server terminates.
+	 * @param deadline ms from now until the connections still open are
+	 * closed
+	 */
+	public void drain(int deadline) {
+		log.warning("server drain called, deadline "+deadline+"ms");
+		drainStarted=System.nanoTime();
+		drainDeadline=Math.max(0,deadline);
+		forceShutdown=true; // this will send session stops to all the clients
+		ioThread.shutDown();
+		wakeWaiter();
+	}
+	
+	/**
+	 * Wake the server if it is waiting for endpoints to close, so that it
+	 * sees a new way of shutting down.
+	 */
+	private void wakeWaiter() {
+		closedLock.lock();
+		try {
+			allClosed.signalAll();
+		} finally {
+			closedLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the deadline in ms for a drain asked for by an admin client
+	 */
+	public int getDrainTimeout() {
+		return drainTimeout;
+	}
+	
+	/**
+	 * @param drainTimeout the deadline in ms for a drain asked for by an
+	 * admin client, see {@link #drainServer}
+	 */
+	public void setDrainTimeout(int drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+	
+	/**
+	 * @return the most broadcasts that wait for a session whose endpoint is
+	 * not writable
+	 */
+	public int getMaxBroadcastBacklog() {
+		return maxBroadcastBacklog;
+	}
+	
+	/**
+	 * @param maxBroadcastBacklog the most broadcasts that wait for a session
+	 * whose endpoint is not writable, over which the session is closed
+	 */
+	public void setMaxBroadcastBacklog(int maxBroadcastBacklog) {
+		this.maxBroadcastBacklog = Math.max(1,maxBroadcastBacklog);
+	}
+	
+	/**
+	 * @return the number of threads accepting connections
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+	
+	/**
+	 * Set before the server manager is started.
+	 * @param acceptors number of threads accepting connections, at least 1
+	 */
+	public void setAcceptors(int acceptors) {
+		this.acceptors = Math.max(1,acceptors);
+	}
+	
+	/**
+	 * @return the number of connections that can be waiting to be accepted
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * Set before the server manager is started.
+	 * @param backlog number of connections that can be waiting to be
+	 * accepted, the operating system may allow fewer
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+	
+	/**
+	 * @return the policy for admitting new connections
+	 */
+	public AdmissionPolicy getAdmissionPolicy() {
+		return admissionPolicy;
+	}
+	
+	/**
+	 * Set before the server manager is started.
+	 * @param admissionPolicy for admitting new connections
+	 */
+	public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+		this.admissionPolicy = admissionPolicy;
+	}
+	
+	/**
+	 * @return the number of connections admitted and not yet closed
+	 */
+	public int numConnections() {
+		AdmissionControl admission=this.admission;
+		return admission==null ? 0 : admission.getConnections();
 	}
 	
 	/**
@@ -179,20 +551,187 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @return the number of live endpoints
 	 */
 	public int numLiveEndpoints() {
-		synchronized(liveEndpoints) {
-			return liveEndpoints.size();
+		return liveEndpoints.size();
+	}
+	
+	/**
+	 * The sessions of this server, by the endpoints they started on, see
+	 * {@link Endpoint#getSessionEndpoint()}. A session is added before
+	 * {@link #sessionStarted} is emitted for it, so that callbacks can tag
+	 * it, and removed once it has ended; a session that is suspended stays
+	 * until it has expired.
+	 * @return the registry of sessions
+	 */
+	public EndpointRegistry getSessions() {
+		return sessions;
+	}
+	
+	/**
+	 * Emit an event on the endpoints of the sessions that pass a filter, as
+	 * {@link Endpoint#emit(String, String)} would on each of them, but with
+	 * the event data encoded once for all of them, see {@link SharedStrings}.
+	 * Each session is given the event in a lane of its own on the event
+	 * executor, so the caller never waits, and neither do the executor's
+	 * threads: a session whose endpoint is not writable keeps the events
+	 * broadcast to it until it is writable again, and one that has more than
+	 * {@link #getMaxBroadcastBacklog()} waiting is too slow and is closed,
+	 * with {@link #sessionError}. Events broadcast to a session are sent in
+	 * the order they were broadcast.
+	 * @param eventName
+	 * @param eventData
+	 * @param filter the sessions to send to, or null for all of them
+	 * @return the number of sessions the event is sent to
+	 */
+	public int broadcast(String eventName, String eventData, Predicate<Endpoint> filter) {
+		if(eventData==null) {
+			log.warning("broadcast event must have String data: "+eventName);
+			return 0;
+		}
+		ArrayList<Endpoint> recipients=new ArrayList<>();
+		sessions.forEach((endpoint)->{
+			if(filter==null || filter.test(endpoint)) recipients.add(endpoint);
+		});
+		if(recipients.isEmpty()) return 0;
+		Broadcast broadcast=new Broadcast(eventName,eventData,recipients.size());
+		KeyedExecutor executor=Utils.getInstance().getEventExecutor();
+		for(Endpoint endpoint : recipients) {
+			executor.execute(new EndpointLane(endpoint,EndpointLane.sending), ()->{
+				deliver(endpoint,broadcast);
+			});
+		}
+		return recipients.size();
+	}
+	
+	/**
+	 * Give a broadcast to a session, or keep it until the session's endpoint
+	 * is writable again. Called in the session's sending lane.
+	 * @param endpoint the session endpoint
+	 * @param broadcast
+	 */
+	private void deliver(Endpoint endpoint, Broadcast broadcast) {
+		ArrayDeque<Broadcast> backlog=backlogs.get(endpoint);
+		if(backlog==null) {
+			if(offer(endpoint,broadcast)) return;
+			backlog=new ArrayDeque<>();
+			backlogs.put(endpoint,backlog);
+			backlog.add(broadcast);
+			// it may have become writable before there was a backlog to send
+			sendBacklog(endpoint);
+		} else if(backlog.size()<maxBroadcastBacklog) {
+			backlog.add(broadcast);
+		} else {
+			broadcast.encoded();
+			dropSlowSession(endpoint);
 		}
 	}
 	
+	/**
+	 * Send a broadcast to a session without waiting.
+	 * @param endpoint the session endpoint
+	 * @param broadcast
+	 * @return false if the session's endpoint is not writable, true if the
+	 * broadcast was sent or the session has ended
+	 */
+	private boolean offer(Endpoint endpoint, Broadcast broadcast) {
+		EventProtocol eventProtocol=eventProtocolOf(endpoint);
+		if(eventProtocol==null || !sessions.contains(endpoint)) {
+			broadcast.encoded();
+			return true;
+		}
+		return eventProtocol.offerEvent(broadcast.eventName,broadcast.eventData,broadcast::encoded);
+	}
+	
+	/**
+	 * Send the broadcasts kept for a session until its endpoint is not
+	 * writable again. Called in the session's sending lane.
+	 * @param endpoint the session endpoint
+	 */
+	private void sendBacklog(Endpoint endpoint) {
+		ArrayDeque<Broadcast> backlog=backlogs.get(endpoint);
+		if(backlog==null) return;
+		while(!backlog.isEmpty() && offer(endpoint,backlog.peek())) backlog.poll();
+		if(backlog.isEmpty()) backlogs.remove(endpoint);
+	}
+	
+	/**
+	 * Send the broadcasts kept for a session, in its sending lane, if there
+	 * are any.
+	 * @param endpoint the session endpoint
+	 */
+	private void resumeBroadcasts(Endpoint endpoint) {
+		if(!backlogs.containsKey(endpoint)) return;
+		Utils.getInstance().getEventExecutor().execute(new EndpointLane(endpoint,EndpointLane.sending), ()->{
+			sendBacklog(endpoint);
+		});
+	}
+	
+	/**
+	 * Drop the broadcasts kept for a session. Called in the session's
+	 * sending lane.
+	 * @param endpoint the session endpoint
+	 */
+	private void dropBacklog(Endpoint endpoint) {
+		ArrayDeque<Broadcast> backlog=backlogs.remove(endpoint);
+		if(backlog!=null) backlog.forEach(Broadcast::encoded);
+	}
+	
+	/**
+	 * End a session that has too many broadcasts waiting for it, and close
+	 * its connection at once. Called in the session's sending lane.
+	 * @param endpoint the session endpoint
+	 */
+	private void dropSlowSession(Endpoint endpoint) {
+		dropBacklog(endpoint);
+		EventProtocol eventProtocol=eventProtocolOf(endpoint);
+		Endpoint current=eventProtocol!=null ? eventProtocol.getEndpoint() : endpoint;
+		log.severe("client "+current.getOtherEndpointId()+" is too slow for broadcasts");
+		endSession(current);
+		localEmit(sessionError,endpoint);
+		current.abort();
+	}
+	
+	/**
+	 * @param endpoint a session endpoint
+	 * @return the event protocol of the session, on whichever endpoint the
+	 * session is now, or null if there is none
+	 */
+	private EventProtocol eventProtocolOf(Endpoint endpoint) {
+		ResumableSession session=resumableSessions.get(endpoint);
+		if(session!=null) return session.eventProtocol;
+		return (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+	}
+	
+	/**
+	 * Forget a session, and drop the broadcasts kept for it once those that
+	 * are on their way have been seen to.
+	 * @param endpoint the session endpoint
+	 */
+	private void removeSession(Endpoint endpoint) {
+		if(!sessions.remove(endpoint)) return;
+		Utils.getInstance().getEventExecutor().execute(new EndpointLane(endpoint,EndpointLane.sending), ()->{
+			dropBacklog(endpoint);
+		});
+	}
+	
 	@Override
 	public void run() {
 		log.info("started");
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
+		if(ioMode==IOMode.Selector) {
+			try {
+				selectorPool = new SelectorPool(Runtime.getRuntime().availableProcessors());
+			} catch (IOException e1) {
+				log.severe("could not start the selector loops");
+				return;
+			}
+		}
+		admission = new AdmissionControl(admissionPolicy);
 		try {
-			ioThread = new IOThread(port,this);
+			ioThread = new IOThread(port,this,ioMode,acceptors,backlog);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
+			if(selectorPool!=null) selectorPool.shutDown();
 			return;
 		}
 		
@@ -204,74 +743,247 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			ioThread.shutDown();
 		}
 		
+		long joined=System.nanoTime();
 		log.info("io thread has joined");
 		
 		// At this point, there still may be some endpoints that have not
 		// terminated, and so the JVM will remain running until they do.
 		// However no new endpoints can be created.
+		int endpoints=numLiveEndpoints();
+		long stopsSent=joined;
 		
-		// let's create our own list of endpoints that exist at this point
-		HashSet<Endpoint> currentEndpoints = new HashSet<>();
-		synchronized(liveEndpoints) {
-			currentEndpoints = new HashSet<>(liveEndpoints);
+		// let's wait for the remaining clients if we can; if we want to tell
+		// clients to end session, now or once it is asked for while waiting,
+		// let's send a stop session to existing clients first
+		boolean stopsRequested=false;
+		while(!vaderShutdown && awaitClosed(stopsRequested)) {
+			stopSessions();
+			stopsRequested=true;
+			stopsSent=System.nanoTime();
 		}
+		long drained=System.nanoTime();
 		
-		// if we want to tell clients to end session
-		// it is indeed possible that both may be set true
-		if(forceShutdown && !vaderShutdown) {
-			// let's send a stop session to existing clients
-			currentEndpoints.forEach((endpoint)->{
-				SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
-				if(sessionProtocol!=null)
-					sessionProtocol.stopSession();
-			});
+		// in this case we just abort the endpoints, which will cause
+		// abrupt disconnection; it is indeed possible that both may be set true
+		if(vaderShutdown) {
+			abortEndpoints();
 		}
 		
-		// in this case we just close the endpoints, which will likely cause
-		// abrupt disconnection
-		if(vaderShutdown) {
-			// let's just close everything
-			currentEndpoints.forEach((endpoint)->{
-				endpoint.close();
-			});
+		// those that did not make it in time are just aborted
+		int stragglers=0;
+		if(drainDeadline>=0 && !vaderShutdown && numLiveEndpoints()>0) {
+			stragglers=numLiveEndpoints();
+			log.warning("closing "+stragglers+" endpoints that did not finish by the deadline");
+			abortEndpoints();
 		}
+		long forceClosed=System.nanoTime();
 		
-		// let's wait for the remaining clients if we can
-		while(numLiveEndpoints()>0 && !vaderShutdown) {
-			log.warning("still waiting for "+numLiveEndpoints()+" to finish");
-			try {
-				Thread.sleep(1000); // just wait a little longer
-			} catch (InterruptedException e) {
-				if(numLiveEndpoints()>0) {
-					log.severe("terminating server with "+numLiveEndpoints()+
-							" still unfinished");
+		// sessions waiting to be resumed never will be now
+		resumableSessions.values().forEach((session)->{
+			if(session.expire()) sessionExpired(session);
+		});
+		if(selectorPool!=null) selectorPool.shutDown();
+		if(drainDeadline>=0) {
+			// the drain may have been called after some of the phases
+			long accepted=Math.max(0,joined-drainStarted);
+			long stopping=Math.max(0,stopsSent-drainStarted-accepted);
+			long waited=drained-drainStarted-accepted-stopping;
+			DrainReport report=new DrainReport(ms(accepted),ms(stopping),ms(waited),
+					ms(forceClosed-drained),endpoints,stragglers);
+			log.info("drained: "+report);
+			localEmit(serverDrained,report);
+		}
+		log.info("terminated");
+	}
+	
+	private static long ms(long ns) {
+		return TimeUnit.NANOSECONDS.toMillis(ns);
+	}
+	
+	/**
+	 * Ask every live endpoint's session to stop, each in its own lane of the
+	 * event executor so that an endpoint with a full outbound queue does not
+	 * hold back the others, and wait until every request has been queued or
+	 * the drain deadline has passed.
+	 */
+	private void stopSessions() {
+		ArrayList<Endpoint> endpoints=new ArrayList<>(liveEndpoints.endpoints());
+		CountDownLatch queued=new CountDownLatch(endpoints.size());
+		KeyedExecutor executor=Utils.getInstance().getEventExecutor();
+		for(Endpoint endpoint : endpoints) {
+			executor.execute(new EndpointLane(endpoint,EndpointLane.sending), ()->{
+				try {
+					SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+					if(sessionProtocol!=null)
+						sessionProtocol.stopSession();
+				} finally {
+					queued.countDown();
 				}
-				break;
+			});
+		}
+		try {
+			while(!queued.await(Math.min(TimeUnit.SECONDS.toNanos(1),drainLeft()),
+					TimeUnit.NANOSECONDS)) {
+				if(drainLeft()<=0) break;
+				log.warning("still sending stop requests to "+queued.getCount()+" endpoints");
 			}
-			if(vaderShutdown) {
-				// maybe we missed some earlier
-				synchronized(liveEndpoints) {
-					currentEndpoints = new HashSet<>(liveEndpoints);
+		} catch (InterruptedException e) {
+			log.warning("interrupted while sending stop requests");
+		}
+	}
+	
+	/**
+	 * Abort every live endpoint, each in its own lane of the event executor
+	 * so that they are all closed at once, and wait until they have closed or
+	 * {@link Utils#closeFlushTime} has passed, which bounds the lot rather
+	 * than each endpoint.
+	 */
+	private void abortEndpoints() {
+		ArrayList<Endpoint> endpoints=new ArrayList<>(liveEndpoints.endpoints());
+		CountDownLatch aborted=new CountDownLatch(endpoints.size());
+		KeyedExecutor executor=Utils.getInstance().getEventExecutor();
+		for(Endpoint endpoint : endpoints) {
+			executor.execute(new EndpointLane(endpoint,EndpointLane.closing), ()->{
+				try {
+					endpoint.abort();
+				} finally {
+					aborted.countDown();
+				}
+			});
+		}
+		try {
+			if(!aborted.await(Utils.closeFlushTime,TimeUnit.MILLISECONDS))
+				log.warning(aborted.getCount()+" endpoints did not close in time");
+		} catch (InterruptedException e) {
+			log.warning("interrupted while closing endpoints");
+		}
+	}
+	
+	/**
+	 * @return ns left until the drain deadline, or {@link Long#MAX_VALUE} if
+	 * the server is not being drained
+	 */
+	private long drainLeft() {
+		if(drainDeadline<0) return Long.MAX_VALUE;
+		return drainStarted+TimeUnit.MILLISECONDS.toNanos(drainDeadline)-System.nanoTime();
+	}
+	
+	/**
+	 * Wait for the live endpoints to close, logging every second that they
+	 * have not, until the drain deadline if the server is being drained. A
+	 * shutdown of another kind called meanwhile is seen straight away.
+	 * @param stopsRequested whether the sessions have been asked to stop
+	 * @return true if the sessions should now be asked to stop, false once
+	 * the endpoints have closed, the deadline has passed or the server is
+	 * to be shut down at once
+	 */
+	private boolean awaitClosed(boolean stopsRequested) {
+		closedLock.lock();
+		try {
+			while(numLiveEndpoints()>0 && !vaderShutdown) {
+				if(forceShutdown && !stopsRequested) return true;
+				long wait=Math.min(TimeUnit.SECONDS.toNanos(1),drainLeft());
+				if(wait<=0) break;
+				if(allClosed.awaitNanos(wait)<=0 && numLiveEndpoints()>0) {
+					log.warning("still waiting for "+numLiveEndpoints()+" to finish");
 				}
-				currentEndpoints.forEach((endpoint)->{
-				    SessionProtocol sp = (SessionProtocol) endpoint.getProtocol("SessionProtocol");
-				});
 			}
+		} catch (InterruptedException e) {
+			if(numLiveEndpoints()>0) {
+				log.severe("terminating server with "+numLiveEndpoints()+
+						" still unfinished");
+			}
+		} finally {
+			closedLock.unlock();
 		}
-		log.info("terminated");
+		return false;
 	}
 	
 	/**
 	 * A new client has connected to the server. We need to keep
 	 * a set of all clients that have connected, so that we can
 	 * do global operations, like broadcast data to all clients.
+	 * The connection is turned away if the admission policy does not
+	 * allow it.
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		InetAddress address = clientSocket.getInetAddress();
+		String reason = admission.admit(address);
+		if(reason!=null) {
+			refuseClient(clientSocket,address,reason);
+			return;
+		}
+		if(shedding.compareAndSet(true,false)) {
+			int count = turnedAway.getAndSet(0);
+			log.warning("admitting connections again, after turning away "+count);
+			localEmit(sheddingStopped,count);
+		}
+		Endpoint endpoint = newEndpoint(clientSocket);
+		admitted.put(endpoint,address);
 		endpoint.start();
 	}
 	
+	/**
+	 * Turn a new connection away. Its endpoint is started only to tell the
+	 * client to try again later, if the policy allows that and not too
+	 * many are being told so already; otherwise it is just closed.
+	 * @param clientSocket
+	 * @param address
+	 * @param reason
+	 */
+	private void refuseClient(Socket clientSocket, InetAddress address, String reason) {
+		turnedAway.incrementAndGet();
+		if(shedding.compareAndSet(false,true)) {
+			log.warning("turning connections away: "+reason);
+			localEmit(sheddingStarted,reason);
+		}
+		localEmit(connectionRefused,address,reason);
+		if(admission.startRefusing()) {
+			Endpoint endpoint = newEndpoint(clientSocket);
+			refusing.put(endpoint,reason);
+			endpoint.start();
+		} else {
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * @param clientSocket
+	 * @return a new endpoint for the socket, in the io mode of this server
+	 */
+	private Endpoint newEndpoint(Socket clientSocket) {
+		Endpoint endpoint;
+		if(ioMode==IOMode.Selector) {
+			endpoint = new Endpoint(clientSocket.getChannel(),this,selectorPool.next());
+		} else {
+			endpoint = new Endpoint(clientSocket,this);
+			if(ioMode==IOMode.Virtual) endpoint.useVirtualThread();
+		}
+		return endpoint;
+	}
+	
+	/**
+	 * A batch of clients has connected to the server, called by one of the
+	 * acceptors of the io thread. Each endpoint only has its transport
+	 * started here, i.e. its own thread, or its channel queued for a
+	 * selector loop, which then does the rest.
+	 * @param clientSockets the sockets of the connections, which have
+	 * channels when the io mode is {@link IOMode#Selector}
+	 */
+	public void acceptClients(List<Socket> clientSockets) {
+		for(Socket clientSocket : clientSockets) {
+			if(log.isLoggable(Level.FINE)) {
+				log.fine("Received connection from "+clientSocket.getInetAddress());
+			}
+			acceptClient(clientSocket);
+		}
+	}
+	
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
@@ -287,9 +999,20 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			endpoint.close(); // we'll kill it here
 			return;
 		}
-		synchronized(liveEndpoints) {
-			liveEndpoints.add(endpoint);
+		String reason = refusing.get(endpoint);
+		if(reason!=null) {
+			// just wait for the client to ask for a session, to refuse it
+			SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
+			sessionProtocol.refuseSession(reason,admissionPolicy.retryAfter);
+			try {
+				endpoint.handleProtocol(sessionProtocol);
+				sessionProtocol.startAsServer();
+			} catch (ProtocolAlreadyRunning e) {
+				// already started by the client, and refused
+			}
+			return;
 		}
+		liveEndpoints.add(endpoint);
 		
 		if(password!=null) {
 			// listen for admin client events
@@ -314,6 +1037,13 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				} else {
 					vaderShutdown();
 				}
+			}).on(drainServer, (args)->{
+				String msg = (String) args[0];
+				if(!msg.equals(password)) {
+					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+				} else {
+					drain(drainTimeout);
+				}
 			});
 		}
 		
@@ -342,9 +1072,19 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void endpointClosed(Endpoint endpoint) {
-		synchronized(liveEndpoints) {
-			liveEndpoints.remove(endpoint);
+		if(liveEndpoints.remove(endpoint) && liveEndpoints.size()==0) wakeWaiter();
+		// the session has ended if it was on this connection and was not
+		// suspended, e.g. when closed by a shutdown
+		Endpoint sessionEndpoint = endpoint.getSessionEndpoint();
+		ResumableSession session = resumableSessions.get(sessionEndpoint);
+		if(session==null) {
+			removeSession(sessionEndpoint);
+		} else if(session.getEndpoint()==endpoint) {
+			endSession(endpoint);
 		}
+		InetAddress address = admitted.remove(endpoint);
+		if(address!=null) admission.release(address);
+		if(refusing.remove(endpoint)!=null) admission.refused();
 	}
 
 	/**
@@ -372,8 +1112,24 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
+		// keep the session in case the client needs to resume it
+		SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+		if(sessionProtocol!=null && sessionProtocol.getResumeToken()!=null) {
+			ResumableSession session = new ResumableSession(sessionProtocol.getResumeToken(),endpoint,
+					(EventProtocol) endpoint.getProtocol(EventProtocol.protocolName));
+			resumeTokens.put(session.token,session);
+			resumableSessions.put(endpoint,session);
+		}
+		
+		// broadcasts kept while the endpoint was not writable can now be sent;
+		// a resumed session's endpoints share this callback
+		endpoint.on(Endpoint.endpointWritable,(args)->{
+			resumeBroadcasts(endpoint);
+		});
+		
 		// the event protocol has started but still no events
 		// could have been received at this point
+		sessions.add(endpoint);
 		localEmit(sessionStarted,endpoint);
 		
 	}
@@ -389,12 +1145,117 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
 		
-		localEmit(sessionStopped,endpoint);
+		endSession(endpoint);
+		localEmit(sessionStopped,endpoint.getSessionEndpoint());
 		
 		// we can now signal the client endpoint to close and forget this client
 		endpoint.close(); // will stop all remaining protocols
 	}
 	
+	/**
+	 * The client has asked to resume a session over a new connection. The
+	 * session is moved to the new endpoint if it has not expired.
+	 * @param endpoint
+	 * @param resumeToken
+	 * @param features
+	 * @return sequence number of the last event received on the session,
+	 * or -1 if it cannot be resumed
+	 */
+	@Override
+	public long sessionResumeRequested(Endpoint endpoint, String resumeToken, Set<String> features) {
+		ResumableSession session = resumeTokens.get(resumeToken);
+		if(session==null || forceShutdown || !session.attach(endpoint,features)) {
+			log.info("session cannot be resumed for client: "+endpoint.getOtherEndpointId());
+			// the client will start a new session instead
+			if(session!=null && session.expire()) sessionExpired(session);
+			return -1;
+		}
+		return session.eventProtocol.getReceived();
+	}
+	
+	/**
+	 * The session has been resumed over a new connection, send the client
+	 * the events it missed.
+	 * @param endpoint
+	 * @param received
+	 */
+	@Override
+	public void sessionResumed(Endpoint endpoint, long received) {
+		log.info("session has resumed with client: "+endpoint.getOtherEndpointId());
+		ResumableSession session = resumableSessions.get(endpoint.getSessionEndpoint());
+		if(session==null) {
+			// expired as it was being resumed
+			localEmit(sessionError,endpoint.getSessionEndpoint());
+			endpoint.close();
+			return;
+		}
+		session.eventProtocol.resume(endpoint,received);
+		resumeBroadcasts(endpoint.getSessionEndpoint());
+		localEmit(sessionResumed,endpoint.getSessionEndpoint());
+	}
+	
+	/**
+	 * The session has been refused, as the connection was turned away, and
+	 * the client told when to try again. Close the connection now.
+	 * @param endpoint
+	 * @param reason
+	 * @param retryAfter
+	 */
+	@Override
+	public void sessionRefused(Endpoint endpoint, String reason, long retryAfter) {
+		log.info("session refused for client: "+endpoint.getOtherEndpointId()+": "+reason);
+		endpoint.close();
+	}
+	
+	/**
+	 * The connection of an endpoint has been lost. Its session is suspended
+	 * if the client can resume it, otherwise the session has ended in error.
+	 * @param endpoint
+	 */
+	private void connectionLost(Endpoint endpoint) {
+		if(refusing.containsKey(endpoint)) {
+			// there was never a session
+			endpoint.close();
+			return;
+		}
+		Endpoint sessionEndpoint = endpoint.getSessionEndpoint();
+		ResumableSession session = resumableSessions.get(sessionEndpoint);
+		if(session!=null && session.suspend(endpoint,getResumeWindow(),()->{sessionExpired(session);})) {
+			log.info("session suspended for client: "+endpoint.getOtherEndpointId());
+			localEmit(sessionSuspended,sessionEndpoint);
+		} else if(session==null || !session.movedFrom(endpoint)) {
+			endSession(endpoint);
+			localEmit(sessionError,sessionEndpoint);
+		}
+		// else the session is on another connection now
+		endpoint.close();
+	}
+	
+	/**
+	 * A suspended session was not resumed in time.
+	 * @param session
+	 */
+	private void sessionExpired(ResumableSession session) {
+		resumableSessions.remove(session.sessionEndpoint);
+		resumeTokens.remove(session.token);
+		removeSession(session.sessionEndpoint);
+		log.info("suspended session has expired for client: "+session.sessionEndpoint.getOtherEndpointId());
+		localEmit(sessionError,session.sessionEndpoint);
+	}
+	
+	/**
+	 * The session of an endpoint has ended, it can no longer be resumed.
+	 * @param endpoint
+	 */
+	private void endSession(Endpoint endpoint) {
+		removeSession(endpoint.getSessionEndpoint());
+		ResumableSession session = resumableSessions.remove(endpoint.getSessionEndpoint());
+		if(session!=null) {
+			resumeTokens.remove(session.token);
+			session.end();
+		}
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -405,6 +1266,12 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
+		String reason = refusing.get(endpoint);
+		if(reason!=null) {
+			// only the session protocol, to refuse the session
+			if(!(protocol instanceof SessionProtocol)) return false;
+			((SessionProtocol)protocol).refuseSession(reason,admissionPolicy.retryAfter);
+		}
 		// the only protocols in this system are this kind...
 		try {
 			((IRequestReplyProtocol)protocol).startAsServer();
@@ -434,7 +1301,8 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		endSession(endpoint);
+		localEmit(sessionError,endpoint.getSessionEndpoint());
 		endpoint.close();
 	}
 	
@@ -447,8 +1315,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
-		endpoint.close();
+		connectionLost(endpoint);
 	}
 	
 	/**
@@ -459,7 +1326,8 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		endSession(endpoint);
+		localEmit(sessionError,endpoint.getSessionEndpoint());
 		endpoint.close();
 	}
 
@@ -472,8 +1340,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
-		endpoint.close();
+		connectionLost(endpoint);
 	}
 
 	
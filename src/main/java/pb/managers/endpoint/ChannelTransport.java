@@ -0,0 +1,370 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import pb.utils.HashedWheelTimer;
+import pb.utils.Utils;
+
+/**
+ * Moves frames between an {@link Endpoint} and a non-blocking socket channel
+ * that is owned by a {@link SelectorLoop}. Reading is done by the loop, which
+ * hands each complete frame to the endpoint. Writing never blocks the caller,
+ * the frame is queued on the endpoint's {@link OutboundQueue} and the loop
+ * writes out everything that is queued, with a single gathering write, when
+ * the channel can take it. When closed, frames that were already queued are
+ * still written before the channel is closed.
+ *
+ * @see {@link pb.managers.endpoint.SelectorLoop}
+ * @see {@link pb.managers.endpoint.FrameDecoder}
+ * @author aaron
+ *
+ */
+class ChannelTransport {
+	private static Logger log = Logger.getLogger(ChannelTransport.class.getName());
+
+	/**
+	 * The channel for this transport.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The loop that owns the channel.
+	 */
+	private final SelectorLoop loop;
+
+	/**
+	 * The endpoint that frames are given to.
+	 */
+	private final Endpoint endpoint;
+
+	/**
+	 * Splits bytes read into frames.
+	 */
+	private final FrameDecoder decoder;
+
+	/**
+	 * Frames waiting to be written.
+	 */
+	private final OutboundQueue outbound;
+
+	/**
+	 * Frames taken from the queue that the loop is writing, only used
+	 * by the loop thread.
+	 */
+	private final List<OutboundQueue.Entry> batch;
+
+	/**
+	 * Buffers for the frames in the batch.
+	 */
+	private ByteBuffer[] buffers;
+
+	/**
+	 * Index of the first buffer in the batch that is not fully written.
+	 */
+	private int written;
+
+	/**
+	 * True when the loop has been asked to write, or is writing, the
+	 * outbound queue.
+	 */
+	private final AtomicBoolean writeScheduled;
+
+	/**
+	 * The selection key, set and used by the loop thread, and read by
+	 * {@link #close()} from any thread to tell whether the loop has the
+	 * channel yet.
+	 */
+	private volatile SelectionKey key;
+
+	/**
+	 * Closed flag, no more frames are read once set.
+	 */
+	private volatile boolean closed=false;
+
+	/**
+	 * Set once the channel itself has been closed.
+	 */
+	private final AtomicBoolean channelClosed;
+
+	/**
+	 * Closes the channel if the outbound queue takes too long to write.
+	 */
+	private volatile HashedWheelTimer.Timeout closeTimeout=null;
+
+	/**
+	 * Initialise the transport.
+	 * @param channel the connected channel
+	 * @param loop the loop that will own the channel
+	 * @param endpoint the endpoint to give frames to
+	 * @param outbound the endpoint's queue of frames to write
+	 */
+	ChannelTransport(SocketChannel channel, SelectorLoop loop, Endpoint endpoint,
+			OutboundQueue outbound) {
+		this.channel=channel;
+		this.loop=loop;
+		this.endpoint=endpoint;
+		this.outbound=outbound;
+		decoder=new FrameDecoder();
+		batch=new ArrayList<>();
+		buffers=new ByteBuffer[0];
+		writeScheduled=new AtomicBoolean(false);
+		channelClosed=new AtomicBoolean(false);
+	}
+
+	/**
+	 * Hand the channel over to the loop.
+	 */
+	void start() {
+		loop.register(this);
+	}
+
+	/**
+	 * Called by the loop to register the channel.
+	 * @param selector
+	 */
+	void registered(Selector selector) {
+		if(closed) return;
+		try {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			endpoint.transportFailed();
+			return;
+		}
+		endpoint.transportReady();
+		// frames may have been queued before the key existed
+		if(!outbound.isEmpty()) writable();
+	}
+
+	/**
+	 * Called by the loop when the channel has bytes to read.
+	 * @param readBuffer the loop's read buffer
+	 */
+	void readable(ByteBuffer readBuffer) {
+		readBuffer.clear();
+		if(closed) {
+			// only waiting for queued frames to be written, anything more
+			// from the other end is discarded
+			try {
+				if(channel.read(readBuffer)<0) closeChannel();
+			} catch (IOException e) {
+				closeChannel();
+			}
+			return;
+		}
+		try {
+			int read = channel.read(readBuffer);
+			if(read<0) {
+				endpoint.transportFailed();
+				return;
+			}
+			readBuffer.flip();
+			decoder.decode(readBuffer, this);
+		} catch (IOException e) {
+			if(!closed) endpoint.transportFailed();
+		}
+	}
+
+	/**
+	 * @return true if the endpoints agreed that they may switch to binary
+	 * framing
+	 */
+	boolean binaryFramingAgreed() {
+		return endpoint.hasFeature(Endpoint.binaryFraming);
+	}
+	
+	/**
+	 * Called by the decoder for each complete writeUTF frame.
+	 * @param line
+	 */
+	void frame(String line) {
+		endpoint.receive(line);
+	}
+
+	/**
+	 * Called by the decoder for each complete binary frame.
+	 * @param buffer holding the payload, only valid during the call
+	 * @param offset
+	 * @param length
+	 */
+	void frame(byte[] buffer, int offset, int length) {
+		endpoint.receive(buffer, offset, length);
+	}
+
+	/**
+	 * Ask the loop to write the frames in the outbound queue. Can be called
+	 * by any thread.
+	 */
+	void requestWrite() {
+		if(writeScheduled.compareAndSet(false, true)) {
+			loop.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Called by the loop to write as much of the outbound queue as the
+	 * channel will take without blocking. All of the frames queued so far
+	 * are written together, using a single gathering write when the socket
+	 * buffer has room for them.
+	 */
+	void writable() {
+		if(channelClosed.get()) {
+			failBatch();
+			return;
+		}
+		if(key==null) return;
+		try {
+			while(true) {
+				if(written==batch.size()) {
+					batch.clear();
+					written=0;
+					outbound.drain(batch, false);
+					if(batch.isEmpty()) {
+						if(closed) {
+							closeChannel();
+							return;
+						}
+						if(!key.isValid()) return;
+						key.interestOps(SelectionKey.OP_READ);
+						writeScheduled.set(false);
+						// a writer may have queued a frame after we saw the queue empty
+						if(outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) return;
+						continue;
+					}
+					if(buffers.length<batch.size()) buffers=new ByteBuffer[Math.max(batch.size(),buffers.length*2)];
+					for(int i=0;i<batch.size();i++) buffers[i]=ByteBuffer.wrap(batch.get(i).frame);
+				}
+				long count = channel.write(buffers, written, batch.size()-written);
+				if(count>0) {
+					outbound.written(count);
+					endpoint.updateWritability();
+				}
+				while(written<batch.size() && !buffers[written].hasRemaining()) {
+					buffers[written]=null;
+					batch.get(written++).complete(true);
+				}
+				if(written<batch.size()) {
+					// the socket buffer is full, wait until it can take more
+					if(key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			if(closed) {
+				closeChannel();
+			} else {
+				endpoint.transportFailed();
+			}
+			failBatch();
+		} catch (CancelledKeyException e) {
+			// the channel was closed by another thread meanwhile
+			closeChannel();
+			failBatch();
+		} catch (InterruptedException e) {
+			// does not happen, the loop never waits on the queue
+		}
+	}
+	
+	/**
+	 * Called by the loop when handling the channel, or a callback run while
+	 * doing so, failed unexpectedly. Only this endpoint is closed, the loop
+	 * carries on with the others.
+	 * @param e
+	 */
+	void failed(RuntimeException e) {
+		log.severe("closing endpoint after an unexpected failure: "+e);
+		closeChannel();
+		try {
+			endpoint.transportFailed();
+		} catch (RuntimeException e2) {
+			log.severe("endpoint failed while closing: "+e2);
+		}
+	}
+
+	/**
+	 * @return true if the transport has been closed
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the transport. Can be called by any thread. No more frames are
+	 * read, frames already in the outbound queue are written and then the
+	 * channel is closed; or it is closed anyway if that takes longer than
+	 * {@link pb.utils.Utils#closeFlushTime}.
+	 */
+	void close() {
+		closed=true;
+		if(key==null) {
+			closeChannel();
+			return;
+		}
+		loop.requestWrite(this);
+		try {
+			closeTimeout=Utils.getInstance().setTimeout(()->{closeChannel();}, Utils.closeFlushTime);
+		} catch (IllegalStateException e) {
+			// the timer has been cleaned up, the system is exiting
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Close the channel at once, resetting the connection rather than
+	 * writing the frames that are still queued.
+	 */
+	void abort() {
+		try {
+			channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+		} catch (IOException e) {
+			// already closed
+		}
+		closeChannel();
+	}
+
+	/**
+	 * Close the channel, giving up on any frames that are still queued.
+	 */
+	private void closeChannel() {
+		if(!channelClosed.compareAndSet(false, true)) return;
+		closed=true;
+		HashedWheelTimer.Timeout timeout=closeTimeout;
+		if(timeout!=null) timeout.cancel();
+		if(key!=null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+		outbound.fail();
+		// the batch belongs to the loop thread
+		if(Thread.currentThread()==loop) {
+			failBatch();
+		} else {
+			loop.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Give up on the frames of the batch that have not been written. Only
+	 * called by the loop thread.
+	 */
+	private void failBatch() {
+		for(int i=written;i<batch.size();i++) {
+			buffers[i]=null;
+			batch.get(i).complete(false);
+		}
+		batch.clear();
+		written=0;
+	}
+}
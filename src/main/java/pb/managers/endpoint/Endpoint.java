@@ -1,23 +1,40 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import pb.utils.BufferPool;
 import pb.utils.Eventable;
+import pb.utils.HashedWheelTimer;
+import pb.utils.LongHashMap;
 import pb.utils.Utils;
+import pb.utils.VirtualThreads;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.ICallback;
+import pb.protocols.codec.BinaryCodec;
+import pb.protocols.codec.IMessageCodec;
+import pb.protocols.codec.JsonCodec;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
@@ -27,12 +44,36 @@ import pb.protocols.session.SessionProtocol;
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. It also provides methods to send
+ * messages to the other endpoint. Sent messages are encoded and put on a
+ * bounded {@link OutboundQueue}, which a writer thread drains, writing
+ * everything that has been queued before flushing the socket once.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
+ * <br/>
+ * Alternatively the endpoint can be given a non-blocking socket channel and a
+ * {@link pb.managers.endpoint.SelectorLoop}, in which case the endpoint thread
+ * is never started; the loop reads messages for the endpoint, along with those
+ * of many other endpoints, and sending a message just queues it for the loop
+ * to write.
+ * <br/>
+ * Messages are initially framed with {@link java.io.DataOutputStream#writeUTF(String)},
+ * which limits them to 64KB. If both ends agree on the {@link #binaryFraming}
+ * feature when the session starts, each end sends an empty frame and from then
+ * on frames are a four byte length followed by the message, encoded with the
+ * agreed {@link pb.protocols.codec.IMessageCodec}: JSON, or
+ * {@link pb.protocols.codec.BinaryCodec} if {@link #binaryCodec} was agreed too.
+ * <br/>
+ * The endpoint counts the bytes that are waiting to be written. When they go
+ * over the high watermark it emits {@link #endpointUnwritable}, and once they
+ * come down to the low watermark it emits {@link #endpointWritable}; producers
+ * of bulk data should send while {@link #isWritable()} and then wait for the
+ * writable event, rather than sending at a fixed rate. Bytes that a protocol
+ * holds back for the endpoint, see {@link #holdBytes(long)}, count as waiting
+ * as well.
  * 
  * @see {@link pb.managers.Manager}
+ * @see {@link pb.managers.endpoint.SelectorLoop}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
@@ -41,6 +82,55 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Events emitted by the Endpoint, with {@link #localEmit(String, Object...)}
+	 * so that they are not sent to the other endpoint.
+	 */
+	
+	/**
+	 * Emitted when the bytes waiting to be written have come down to the low
+	 * watermark, after having gone over the high watermark.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String endpointWritable="ENDPOINT_WRITABLE";
+	
+	/**
+	 * Emitted when the bytes waiting to be written have gone over the high
+	 * watermark. Messages can still be sent, but producers should hold off
+	 * until {@link #endpointWritable} is emitted.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String endpointUnwritable="ENDPOINT_UNWRITABLE";
+	
+	/**
+	 * Feature name, negotiated when the session starts, for frames with a
+	 * four byte length prefix instead of writeUTF.
+	 */
+	public static final String binaryFraming = "binaryFraming";
+	
+	/**
+	 * Feature name, negotiated when the session starts, for encoding binary
+	 * frames with {@link pb.protocols.codec.BinaryCodec} instead of JSON.
+	 * Only used together with {@link #binaryFraming}.
+	 */
+	public static final String binaryCodec = "binaryCodec";
+	
+	/**
+	 * Codecs are stateless so they are shared by all endpoints.
+	 */
+	private static final IMessageCodec jsonCodec = new JsonCodec();
+	private static final IMessageCodec binaryMessageCodec = new BinaryCodec();
+	
+	/**
+	 * Bytes of a binary frame that are read before the array holding them
+	 * is made larger.
+	 */
+	private static final int readChunk = 64*1024;
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -61,20 +151,105 @@ public class Endpoint extends Eventable {
 	 */
 	private DataOutputStream out=null;
 	
+	/**
+	 * Frames waiting to be written to the socket.
+	 */
+	private final OutboundQueue outbound;
+	
+	/**
+	 * The thread writing the outbound queue to the socket, when the
+	 * endpoint thread is reading the socket.
+	 */
+	private Thread writer=null;
+	
+	/**
+	 * The channel transport when a selector loop is being used, or null
+	 * when the endpoint thread is reading the socket.
+	 */
+	private ChannelTransport channelTransport=null;
+	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
 	 */
 	private Map<String,Protocol> protocols;
 	
+	/**
+	 * Names of protocols that were released to carry on with another
+	 * endpoint, whose messages are dropped rather than starting the
+	 * protocol again.
+	 */
+	private final Set<String> released=new HashSet<>();
+	
+	/**
+	 * The endpoint that the session was started on, which the application
+	 * knows the session by; this endpoint unless the session was resumed.
+	 */
+	private volatile Endpoint sessionEndpoint=this;
+	
 	/**
 	 * Timeout id to use.
 	 */
 	private long timeoutId=1;
 	
 	/**
-	 * Oustanding ids
+	 * Timeout id to timer, of requests that are waiting for a reply. A reply
+	 * removes its request and cancels the timer.
 	 */
-	private Set<Long> outstandingIds;
+	private final LongHashMap<HashedWheelTimer.Timeout> pendingRequests;
+	
+	/**
+	 * Serialises queueing of frames and closing, so that frames are queued in
+	 * the order they were encoded. A lock is used rather than synchronized
+	 * methods so that a sender on a virtual thread that waits for space in the
+	 * outbound queue does not pin its carrier thread.
+	 */
+	private final ReentrantLock sendLock=new ReentrantLock();
+	
+	/**
+	 * The writability that was last emitted, only changed while holding
+	 * the writability lock.
+	 */
+	private boolean reportedWritable=true;
+	
+	/**
+	 * Held while emitting a change of writability, so that the writable and
+	 * unwritable events alternate.
+	 */
+	private final ReentrantLock writabilityLock=new ReentrantLock();
+	
+	/**
+	 * Set when writability may have changed and has not yet been checked.
+	 */
+	private final AtomicBoolean writabilityChanged=new AtomicBoolean(false);
+	
+	/**
+	 * Features agreed with the other endpoint when the session started.
+	 */
+	private volatile Set<String> features=Collections.emptySet();
+	
+	/**
+	 * {@link System#nanoTime()} when a message was last received from, or
+	 * queued for, the other endpoint; used by the keep alive protocol as
+	 * signs of life.
+	 */
+	private volatile long timeLastReceived=System.nanoTime();
+	private volatile long timeLastSent=timeLastReceived;
+	
+	/**
+	 * Codec for the payload of binary frames, in both directions.
+	 */
+	private volatile IMessageCodec codec=jsonCodec;
+	
+	/**
+	 * Whether this endpoint sends binary frames.
+	 */
+	private boolean binaryOut=false;
+	
+	/**
+	 * Whether the other endpoint sends binary frames, only used by the
+	 * endpoint thread.
+	 */
+	private boolean binaryIn=false;
 	
 	/**
 	 * stopped flag
@@ -90,29 +265,267 @@ public class Endpoint extends Eventable {
 		this.socket = socket;
 		this.manager = manager;
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		pendingRequests = new LongHashMap<>();
+		outbound = new OutboundQueue(Utils.outboundQueueSize,
+				Utils.writeLowWatermark,Utils.writeHighWatermark);
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Initialise the endpoint with a socket channel that will be read and
+	 * written by the given selector loop, and a manager.
+	 * @param channel
+	 * @param manager
+	 * @param loop
+	 */
+	public Endpoint(SocketChannel channel, IEndpointHandler manager, SelectorLoop loop) {
+		this(channel.socket(),manager);
+		channelTransport = new ChannelTransport(channel,loop,this,outbound);
+	}
+	
+	/**
+	 * Start the endpoint. When a selector loop is being used there is no
+	 * endpoint thread to start, the channel is handed to the loop instead.
+	 */
+	@Override
+	public synchronized void start() {
+		if(channelTransport!=null) {
+			channelTransport.start();
+		} else {
+			super.start();
+		}
+	}
+	
+	/**
+	 * Send a Message to the other endpoint. The message is queued for writing
+	 * and this method returns without waiting for it to be written, unless
+	 * the outbound queue is full in which case it waits for space.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @return true if the message was queued, false otherwise
 	 */
-	public synchronized boolean send(Message msg) {
-		if(stopped) return false;
+	public boolean send(Message msg) {
+		return send(msg,true);
+	}
+	
+	/**
+	 * Send a Message to the other endpoint.
+	 * @param msg
+	 * @param wait whether to wait for space if the outbound queue is full;
+	 * if false the message is queued anyway, which is what a protocol should
+	 * do when sending while it holds a lock, having called
+	 * {@link #awaitSendSpace()} before taking it
+	 * @return true if the message was queued, false otherwise
+	 */
+	public boolean send(Message msg, boolean wait) {
+		if(wait) awaitSendSpace();
+		boolean queued=false;
+		sendLock.lock();
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			if(stopped) return false;
+			if(log.isLoggable(Level.FINE))
+				log.fine("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+			queued=queueFrame(encode(msg),null,OutboundQueue.Full.Exceed);
 		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
-			return false;
+			log.warning("message could not be encoded: "+e.getMessage());
+		} finally {
+			sendLock.unlock();
+		}
+		updateWritability();
+		return queued;
+	}
+	
+	/**
+	 * Send a Message to the other endpoint without ever waiting. The returned
+	 * future completes with true once the message has been written to the
+	 * socket, or with false if it could not be queued (the endpoint is stopped
+	 * or its outbound queue is full) or written. The future is completed by
+	 * the thread writing the socket, so actions attached to it should not block.
+	 * @param msg
+	 * @return a future for the result of the send
+	 */
+	public CompletableFuture<Boolean> sendAsync(Message msg) {
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		sendLock.lock();
+		try {
+			if(stopped || !queueFrame(encode(msg),future,OutboundQueue.Full.Fail)) future.complete(false);
+		} catch (IOException e) {
+			log.warning("message could not be encoded: "+e.getMessage());
+			future.complete(false);
+		} finally {
+			sendLock.unlock();
 		}
+		updateWritability();
+		return future;
+	}
+	
+	/**
+	 * Encode a message as a frame, with the framing and codec currently
+	 * in use. Called while holding the send lock.
+	 * @param msg
+	 * @return the frame bytes
+	 * @throws IOException if the message is too long for a writeUTF frame
+	 */
+	private byte[] encode(Message msg) throws IOException {
+		if(binaryOut) return codec.encodeFrame(msg);
+		return FrameDecoder.encode(msg.toJsonString());
+	}
+	
+	/**
+	 * Wait until the outbound queue has space for another message, unless
+	 * called by the thread that writes it. Senders must not wait while
+	 * holding the send lock, or any lock that the thread reading from this
+	 * endpoint may need, because that thread may also be the writer.
+	 */
+	public void awaitSendSpace() {
+		if(!isWriter()) outbound.awaitSpace();
+	}
+	
+	/**
+	 * Put a frame on the outbound queue and make sure that it will be written.
+	 * Called while holding the send lock, so it never waits.
+	 * @param frame
+	 * @param future to complete when written, or null
+	 * @param full what to do if the queue is full
+	 * @return true if the frame was queued
+	 */
+	private boolean queueFrame(byte[] frame, CompletableFuture<Boolean> future,
+			OutboundQueue.Full full) {
+		if(!outbound.offer(frame,future,full)) return false;
+		timeLastSent=System.nanoTime();
+		if(channelTransport!=null) channelTransport.requestWrite();
 		return true;
 	}
 	
+	/**
+	 * @return {@link System#nanoTime()} when a message was last received
+	 * from the other endpoint, or when the endpoint was made if none has been
+	 */
+	public long getTimeLastReceived() {
+		return timeLastReceived;
+	}
+	
+	/**
+	 * @return {@link System#nanoTime()} when a message was last queued for
+	 * the other endpoint, or when the endpoint was made if none has been
+	 */
+	public long getTimeLastSent() {
+		return timeLastSent;
+	}
+	
+	/**
+	 * @return true if called by the thread that writes the outbound queue,
+	 * or by any selector loop, which must never wait for space in it
+	 */
+	private boolean isWriter() {
+		if(SelectorLoop.isLoopThread()) return true;
+		return channelTransport==null && Thread.currentThread()==writer;
+	}
+	
+	/**
+	 * Emit {@link #endpointWritable} or {@link #endpointUnwritable} if the
+	 * writability has changed since it was last emitted. Must not be called
+	 * while holding the send lock. If another thread is already emitting then
+	 * that thread emits the change as well, so the writer never waits here.
+	 */
+	void updateWritability() {
+		writabilityChanged.set(true);
+		if(sendLock.isHeldByCurrentThread()) return; // the caller checks after unlocking
+		while(writabilityChanged.get() && writabilityLock.tryLock()) {
+			try {
+				writabilityChanged.set(false);
+				boolean writable=outbound.isWritable();
+				if(writable==reportedWritable || stopped) continue;
+				reportedWritable=writable;
+				localEmit(writable ? endpointWritable : endpointUnwritable, this);
+			} finally {
+				writabilityLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * @return true if the bytes waiting to be written are under the
+	 * watermarks, false if they went over the high watermark and have not yet
+	 * come down to the low watermark, or if the endpoint is closing
+	 */
+	public boolean isWritable() {
+		return outbound.isWritable();
+	}
+	
+	/**
+	 * Count bytes that a protocol holds back before sending them, e.g. events
+	 * waiting for the other endpoint to acknowledge earlier ones, toward the
+	 * watermarks, so that producers stop while they pile up. Must not be
+	 * called while holding a lock that a writability handler may need.
+	 * @param count bytes now held back, or negative for bytes that have since
+	 * been sent or dropped
+	 */
+	public void holdBytes(long count) {
+		outbound.hold(count);
+		updateWritability();
+	}
+	
+	/**
+	 * Set the watermarks for the bytes waiting to be written. The defaults
+	 * are {@link pb.utils.Utils#writeLowWatermark} and
+	 * {@link pb.utils.Utils#writeHighWatermark}.
+	 * @param lowWatermark bytes at which the endpoint becomes writable again
+	 * @param highWatermark bytes over which the endpoint becomes unwritable
+	 */
+	public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+		if(lowWatermark<0 || lowWatermark>highWatermark)
+			throw new IllegalArgumentException("watermarks must satisfy 0<=low<=high");
+		outbound.setWatermarks(lowWatermark,highWatermark);
+		updateWritability();
+	}
+	
+	/**
+	 * Switch this endpoint to sending binary frames. An empty frame is sent
+	 * first to tell the other endpoint that the framing has changed. Should
+	 * only be called once the {@link #binaryFraming} feature has been agreed.
+	 * @return true if the switch was sent, false otherwise
+	 */
+	public boolean upgradeFraming() {
+		sendLock.lock();
+		try {
+			if(stopped) return false;
+			if(binaryOut) return true;
+			if(!queueFrame(FrameDecoder.encode(""),null,OutboundQueue.Full.Exceed)) return false;
+			binaryOut=true;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * Set the features that have been agreed with the other endpoint.
+	 * @param features
+	 */
+	public void setFeatures(Set<String> features) {
+		this.features=Collections.unmodifiableSet(features);
+		if(features.contains(binaryFraming) && features.contains(binaryCodec)) {
+			codec=binaryMessageCodec;
+		}
+	}
+	
+	/**
+	 * @return the features that have been agreed with the other endpoint
+	 */
+	public Set<String> getFeatures() {
+		return features;
+	}
+	
+	/**
+	 * @param feature
+	 * @return true if the feature was agreed with the other endpoint
+	 */
+	public boolean hasFeature(String feature) {
+		return features.contains(feature);
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -122,25 +535,60 @@ public class Endpoint extends Eventable {
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
-		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
+		return sendWithTimeout(msg,timeoutCallback,timeInterval,true);
+	}
+	
+	/**
+	 * Send a message and attach a timeout identifier to it.
+	 * @param msg
+	 * @param timeoutCallback
+	 * @param timeInterval
+	 * @param wait whether to wait for space in the outbound queue, see
+	 * {@link #send(Message, boolean)}
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeout(Message msg,
+			ICallback timeoutCallback,int timeInterval,boolean wait) {
+		if(wait) awaitSendSpace();
+		boolean sent;
+		sendLock.lock();
+		try {
+			long nextId = timeoutId++;
+			HashedWheelTimer.Timeout timeout = Utils.getInstance().setTimeout(()->{
+				boolean timedout;
+				synchronized(pendingRequests) {
+					timedout=pendingRequests.remove(nextId)!=null;
+				}
+				if(timedout) timeoutCallback.callback();
+			}, timeInterval);
+			// registered before sending, the reply may come back straight away
+			synchronized(pendingRequests) {
+				pendingRequests.put(nextId,timeout);
 			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
+			msg.setTimeoutId(nextId);
+			sent=send(msg,false);
+			if(!sent) cancelTimeout(nextId);
+		} finally {
+			sendLock.unlock();
+		}
+		updateWritability();
 		return sent;
 	}
 	
+	/**
+	 * Forget a request that is waiting for a reply and cancel its timer.
+	 * @param id timeout id of the request
+	 */
+	private void cancelTimeout(long id) {
+		HashedWheelTimer.Timeout timeout;
+		synchronized(pendingRequests) {
+			timeout=pendingRequests.remove(id);
+		}
+		if(timeout!=null) timeout.cancel();
+	}
+	
 	/**
 	 * Send a message in reply to a message that has a timeout id associated
 	 * with it. If it is received in time then it will ensure that a timeout
@@ -149,18 +597,57 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
 		return(send(msg));
 	}
 	
 	/**
-	 * Closes the endpoint, which closes the socket. Both the endpoint thread
-	 * and the timer thread may end up attempting to do this in the event that
-	 * they detect problems.
+	 * Closes the endpoint, which closes the socket once the messages already
+	 * sent have been written, or {@link pb.utils.Utils#closeFlushTime} has
+	 * passed. Both the endpoint thread and the timer thread may end up
+	 * attempting to do this in the event that they detect problems.
+	 */
+	public void close() {
+		// wakes up any sender waiting for space, so that the lock is free
+		outbound.close();
+		sendLock.lock();
+		try {
+			stopLocked();
+		} finally {
+			sendLock.unlock();
+		}
+		// waiting for the writer does not hold up the senders, who just fail
+		finishClose();
+	}
+	
+	/**
+	 * Closes the endpoint at once, giving up on the messages that have not
+	 * been written yet. The connection is reset rather than closed, so that a
+	 * writer blocked on an endpoint that does not read wakes up straight away
+	 * and nothing waits for the other endpoint.
+	 */
+	public void abort() {
+		stopped=true;
+		if(channelTransport!=null) {
+			channelTransport.abort();
+		} else {
+			try {
+				socket.setSoLinger(true, 0);
+				socket.close();
+			} catch (IOException e) {
+				log.warning("socket did not close properly: "+e.getMessage());
+			}
+		}
+		close();
+	}
+	
+	/**
+	 * Stop the endpoint while holding the send lock, so that nothing more is
+	 * sent once it returns.
 	 */
-	public synchronized void close() {
+	private void stopLocked() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
 		/* 
@@ -175,6 +662,30 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
+		// the protocols are stopped, so none of their timeouts are needed
+		synchronized(pendingRequests) {
+			pendingRequests.forEachValue((timeout)->{timeout.cancel();});
+			pendingRequests.clear();
+		}
+		
+		// let the writer write what is left in the outbound queue
+		outbound.close();
+		if(channelTransport!=null) channelTransport.close();
+	}
+	
+	/**
+	 * Wait for the writer to write what is left, then close the socket.
+	 */
+	private void finishClose() {
+		if(writer!=null && writer!=Thread.currentThread()) {
+			try {
+				writer.join(Utils.closeFlushTime);
+			} catch (InterruptedException e) {
+				// close the socket anyway
+				Thread.currentThread().interrupt();
+			}
+		}
+		
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
 		 *  interrupt it.
@@ -185,23 +696,20 @@ public class Endpoint extends Eventable {
 		
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
+		 * thread callback (which is a pain, but it can't send anything, as the
+		 * endpoint was stopped while holding the send lock), plus there may
 		 * be pending timer thread callbacks that will want to use this endpoint
 		 * (which wont run since protocol stopped has been set in the protocols).
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
-		}
-		try {
-			socket.close();
-		} catch (IOException e) {
-			log.warning("socket did not close properly: "+e.getMessage());
+		// the channel transport closes the socket once its queue is written
+		if(channelTransport==null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.warning("socket did not close properly: "+e.getMessage());
+			}
 		}
 		manager.endpointClosed(this);
 	}
@@ -212,62 +720,40 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
+		if(usesVirtualThread()) {
+			writer=VirtualThreads.start(getName()+"Writer",()->{writeOutbound();});
+		} else {
+			writer=new Thread(()->{writeOutbound();},getName()+"Writer");
+			writer.start();
+		}
 		stopped=false; // allow use of the out stream
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
 		while(!isInterrupted()) {
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
+				if(binaryIn) {
+					readBinaryFrame();
+				} else {
+					String line = in.readUTF();
+					if(line.isEmpty()) {
+						// the other endpoint has switched to binary frames
+						if(!hasFeature(binaryFraming)) throw new IOException("binary framing was not agreed");
+						binaryIn=true;
+					} else {
+						receive(line);
 					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
 				}
 			} catch (IOException e) {
-				manager.endpointDisconnectedAbruptly(this);
+				// unless the socket was closed by closing the endpoint
+				if(!stopped) manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
 				break;
-			} catch (InvalidMessage e) {
-				manager.endpointSentInvalidMessage(this);
-				// up to the client what to do
 			}
 		}
 		try {
@@ -278,6 +764,166 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Write the outbound queue to the socket until the queue is closed and
+	 * empty. Run by the writer thread. Everything that has been queued is
+	 * written into the buffered stream before it is flushed, so that a burst
+	 * of small messages needs only a few socket writes.
+	 */
+	private void writeOutbound() {
+		List<OutboundQueue.Entry> batch = new ArrayList<>();
+		try {
+			while(outbound.drain(batch,true)) {
+				long bytes=0;
+				for(OutboundQueue.Entry entry : batch) {
+					out.write(entry.frame);
+					bytes+=entry.frame.length;
+				}
+				out.flush();
+				batch.forEach((entry)->{entry.complete(true);});
+				batch.clear();
+				outbound.written(bytes);
+				updateWritability();
+			}
+		} catch (IOException e) {
+			batch.forEach((entry)->{entry.complete(false);});
+			outbound.fail();
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		} catch (InterruptedException e) {
+			outbound.fail();
+		}
+	}
+	
+	/**
+	 * Read a binary frame, using a pooled array for the bytes that grows as
+	 * they arrive, and process the message in it.
+	 * @throws IOException if the frame could not be read or is too large
+	 */
+	private void readBinaryFrame() throws IOException {
+		int length = in.readInt();
+		if(length<0 || length>Utils.getInstance().getMaxFrameSize())
+			throw new IOException("frame too large: "+length);
+		// the other endpoint may never send all that it says it will
+		byte[] buffer = BufferPool.getInstance().acquire(Math.min(length, readChunk));
+		try {
+			int filled=0;
+			while(filled<length) {
+				if(filled==buffer.length) {
+					buffer = BufferPool.getInstance().grow(buffer, filled, Math.min(length, filled+readChunk));
+				}
+				int n = Math.min(length, buffer.length)-filled;
+				in.readFully(buffer, filled, n);
+				filled+=n;
+			}
+			receive(buffer, 0, length);
+		} finally {
+			BufferPool.getInstance().release(buffer);
+		}
+	}
+	
+	/**
+	 * Called by the channel transport once the selector loop has
+	 * registered the channel.
+	 */
+	void transportReady() {
+		stopped=false; // allow use of the channel
+		manager.endpointReady(this);
+		log.info("endpoint has started to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Called by the channel transport when the channel can no longer
+	 * be read or written.
+	 */
+	void transportFailed() {
+		manager.endpointDisconnectedAbruptly(this);
+	}
+	
+	/**
+	 * Process a message received as a writeUTF frame. Called by the endpoint
+	 * thread or by the selector loop.
+	 * @param line the received message
+	 */
+	void receive(String line) {
+		timeLastReceived=System.nanoTime();
+		try {
+			receive(Message.toMessage(line));
+		} catch (InvalidMessage e) {
+			manager.endpointSentInvalidMessage(this);
+			// up to the client what to do
+		}
+	}
+	
+	/**
+	 * Process a message received as a binary frame, decoding it with the
+	 * agreed codec. Called by the endpoint thread or by the selector loop.
+	 * @param buffer holding the frame payload
+	 * @param offset of the payload
+	 * @param length of the payload
+	 */
+	void receive(byte[] buffer, int offset, int length) {
+		timeLastReceived=System.nanoTime();
+		Message msg;
+		try {
+			msg=codec.decode(buffer, offset, length);
+		} catch (InvalidMessage | RuntimeException e) {
+			// a codec must not be brought down by whatever the other side sends
+			manager.endpointSentInvalidMessage(this);
+			// up to the client what to do
+			return;
+		}
+		receive(msg);
+	}
+	
+	/**
+	 * Hand a message received from the other endpoint to the appropriate
+	 * protocol.
+	 * @param msg the received message
+	 */
+	private void receive(Message msg) {
+		// cancel any related time out
+		if(msg.getType()==Message.Type.Reply) {
+			cancelTimeout(msg.getTimeoutId());
+		}
+		// find the protocol
+		Protocol protocol=null;
+		synchronized(protocols) {
+			protocol=protocols.get(msg.getProtocolName());
+		}
+		if(protocol==null) {
+			synchronized(protocols) {
+				if(released.contains(msg.getProtocolName())) {
+					log.info("message dropped for released protocol: "+msg.getName());
+					return;
+				}
+			}
+			switch(msg.getProtocolName()) {
+			case SessionProtocol.protocolName:
+				protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
+				break;
+			case KeepAliveProtocol.protocolName:
+				protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
+				break;
+			case EventProtocol.protocolName:
+				protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
+			}
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.getName());
+				return;
+			}
+		}
+		if(log.isLoggable(Level.FINE))
+			log.fine("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
+		}
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -314,6 +960,41 @@ public class Endpoint extends Eventable {
 		}
 	}
 	
+	/**
+	 * Stop handling a protocol without stopping it, so that it can carry on
+	 * with another endpoint. Messages for it that are received later are
+	 * dropped.
+	 * @param protocolName the protocol name to release
+	 * @return the protocol, or null if it was not being handled
+	 */
+	public Protocol releaseProtocol(String protocolName) {
+		synchronized(protocols) {
+			released.add(protocolName);
+			return protocols.remove(protocolName);
+		}
+	}
+	
+	/**
+	 * Carry on with a session that was started on another endpoint, whose
+	 * connection was lost. This endpoint shares the callbacks of that one,
+	 * so that events emitted on either are sent over this endpoint once the
+	 * event protocol has been moved to it, and received events reach the
+	 * callbacks that the application added.
+	 * @param previous an endpoint that the session was on
+	 */
+	public void resumeSession(Endpoint previous) {
+		sessionEndpoint=previous.sessionEndpoint;
+		shareCallbacks(sessionEndpoint);
+	}
+	
+	/**
+	 * @return the endpoint that the session was started on, which is
+	 * this one unless the session has been resumed
+	 */
+	public Endpoint getSessionEndpoint() {
+		return sessionEndpoint;
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
@@ -0,0 +1,163 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+import pb.utils.BufferPool;
+import pb.utils.Utils;
+
+/**
+ * Splits the bytes read from a non-blocking channel into frames. Initially
+ * the frames are the same as those written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}, i.e. a two byte length
+ * followed by that many bytes of modified UTF-8, so that endpoints on either
+ * side of a connection can use blocking streams or channels as they please.
+ * An empty frame from the other end means that it has switched to binary
+ * framing, where each frame is a four byte length followed by that many
+ * bytes, encoded with the codec that the endpoint agreed; the switch is only
+ * accepted once the {@link Endpoint#binaryFraming} feature has been agreed.
+ * Bytes of an incomplete frame are kept, in a pooled array that grows as
+ * they arrive, until the rest of the frame arrives.
+ *
+ * @see {@link pb.managers.endpoint.ChannelTransport}
+ * @see {@link pb.managers.endpoint.Endpoint#upgradeFraming()}
+ * @author aaron
+ *
+ */
+class FrameDecoder {
+	/**
+	 * Whether the other end has switched to binary framing.
+	 */
+	private boolean binary=false;
+
+	/**
+	 * Bytes of the length header read so far.
+	 */
+	private final byte[] header=new byte[4];
+
+	/**
+	 * Number of header bytes read so far.
+	 */
+	private int headerRead=0;
+
+	/**
+	 * Array holding the frame being read, or null if between frames. In utf
+	 * mode the first two bytes of the array hold the length header.
+	 */
+	private byte[] frame=null;
+
+	/**
+	 * Offset in the frame array where the payload starts.
+	 */
+	private int offset;
+
+	/**
+	 * Length of the payload of the frame being read.
+	 */
+	private int length;
+
+	/**
+	 * Number of payload bytes read so far.
+	 */
+	private int filled;
+
+	/**
+	 * Decode all of the complete frames in the buffer and pass them to the
+	 * transport. Any remaining bytes are kept for the next call.
+	 * @param in bytes that have been read, in read mode
+	 * @param transport to give the frames to
+	 * @throws IOException if a frame is not valid or too large
+	 */
+	void decode(ByteBuffer in, ChannelTransport transport) throws IOException {
+		while(!transport.isClosed() && in.hasRemaining()) {
+			if(frame==null) {
+				int headerSize = binary ? 4 : 2;
+				while(headerRead<headerSize && in.hasRemaining()) {
+					header[headerRead++]=in.get();
+				}
+				if(headerRead<headerSize) return;
+				headerRead=0;
+				if(binary) {
+					length = ByteBuffer.wrap(header).getInt();
+					if(length<0 || length>Utils.getInstance().getMaxFrameSize())
+						throw new IOException("frame too large: "+length);
+					offset=0;
+				} else {
+					length = ((header[0] & 0xff)<<8) | (header[1] & 0xff);
+					if(length==0) {
+						// the other end has switched to binary framing
+						if(!transport.binaryFramingAgreed())
+							throw new IOException("binary framing was not agreed");
+						binary=true;
+						continue;
+					}
+					offset=2;
+				}
+				// only as large as the bytes at hand, the other end may
+				// never send the rest
+				frame = BufferPool.getInstance().acquire(offset+Math.min(length, in.remaining()));
+				frame[0]=header[0];
+				frame[1]=header[1];
+				filled=0;
+			}
+			int n = Math.min(in.remaining(), length-filled);
+			if(offset+filled+n>frame.length) {
+				frame = BufferPool.getInstance().grow(frame, offset+filled, offset+filled+n);
+			}
+			in.get(frame, offset+filled, n);
+			filled+=n;
+			if(filled==length) {
+				byte[] complete=frame;
+				frame=null;
+				try {
+					if(binary) {
+						transport.frame(complete, 0, length);
+					} else {
+						transport.frame(DataInputStream.readUTF(new DataInputStream(
+								new ByteArrayInputStream(complete, 0, offset+length))));
+					}
+				} finally {
+					BufferPool.getInstance().release(complete);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encode a string as a frame, in the same way as
+	 * {@link java.io.DataOutputStream#writeUTF(String)}.
+	 * @param line
+	 * @return the frame bytes
+	 * @throws IOException if the string is too long to be a frame
+	 */
+	static byte[] encode(String line) throws IOException {
+		int length=0;
+		for(int i=0;i<line.length();i++) {
+			char c = line.charAt(i);
+			length += c>=0x0001 && c<=0x007F ? 1 : c<=0x07FF ? 2 : 3;
+		}
+		if(length>65535) throw new UTFDataFormatException("encoded string too long: "+length+" bytes");
+		// written straight into the frame, without the copies of writeUTF
+		byte[] bytes = new byte[2+length];
+		bytes[0]=(byte)(length>>>8);
+		bytes[1]=(byte) length;
+		int pos=2;
+		for(int i=0;i<line.length();i++) {
+			char c = line.charAt(i);
+			if(c>=0x0001 && c<=0x007F) {
+				bytes[pos++]=(byte) c;
+			} else if(c<=0x07FF) {
+				bytes[pos++]=(byte)(0xC0 | (c>>6));
+				bytes[pos++]=(byte)(0x80 | (c & 0x3F));
+			} else {
+				bytes[pos++]=(byte)(0xE0 | (c>>12));
+				bytes[pos++]=(byte)(0x80 | ((c>>6) & 0x3F));
+				bytes[pos++]=(byte)(0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+}
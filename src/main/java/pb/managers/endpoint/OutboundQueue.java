@@ -0,0 +1,277 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of encoded frames waiting to be written to the socket of
+ * an {@link Endpoint}. Senders add frames and return, while a single writer,
+ * either the endpoint's writer thread or its selector loop, takes all of the
+ * queued frames at once so that they can be written with a single flush.
+ * Once closed no more frames are accepted, but those already queued can still
+ * be taken so that they reach the other endpoint before the socket is closed.
+ * <br/>
+ * The queue also counts the bytes that have been queued but not yet written.
+ * It becomes unwritable when they go over the high watermark, and writable
+ * again when the writer brings them down to the low watermark; producers can
+ * use this to send as fast as the socket drains rather than at a fixed rate.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.ChannelTransport}
+ * @author aaron
+ *
+ */
+class OutboundQueue {
+
+	/**
+	 * A queued frame and the future to complete once it has been written.
+	 */
+	static class Entry {
+		final byte[] frame;
+		final CompletableFuture<Boolean> future;
+
+		Entry(byte[] frame, CompletableFuture<Boolean> future) {
+			this.frame=frame;
+			this.future=future;
+		}
+
+		/**
+		 * Complete the future, if there is one.
+		 * @param written whether the frame was written
+		 */
+		void complete(boolean written) {
+			if(future!=null) future.complete(written);
+		}
+	}
+
+	/**
+	 * Maximum number of queued frames.
+	 */
+	private final int capacity;
+
+	/**
+	 * The queued frames.
+	 */
+	private final ArrayDeque<Entry> entries;
+
+	private final ReentrantLock lock=new ReentrantLock();
+	private final Condition notEmpty=lock.newCondition();
+	private final Condition notFull=lock.newCondition();
+
+	/**
+	 * Closed flag.
+	 */
+	private boolean closed=false;
+
+	/**
+	 * Bytes queued, or taken by the writer, that have not been written yet.
+	 */
+	private long bytes=0;
+
+	/**
+	 * Watermarks for {@link #bytes}.
+	 */
+	private int lowWatermark;
+	private int highWatermark;
+
+	/**
+	 * Whether the bytes waiting are under the watermarks.
+	 */
+	private volatile boolean writable=true;
+
+	/**
+	 * Initialise the queue.
+	 * @param capacity maximum number of queued frames
+	 * @param lowWatermark bytes waiting at which the queue becomes writable again
+	 * @param highWatermark bytes waiting over which the queue becomes unwritable
+	 */
+	OutboundQueue(int capacity, int lowWatermark, int highWatermark) {
+		this.capacity=capacity;
+		this.lowWatermark=lowWatermark;
+		this.highWatermark=highWatermark;
+		entries=new ArrayDeque<>();
+	}
+
+	/**
+	 * How to add a frame when the queue is full.
+	 */
+	enum Full {
+		/** give up */
+		Fail,
+		/**
+		 * add it anyway, for senders that have already waited with
+		 * {@link OutboundQueue#awaitSpace()} and for the thread that drains
+		 * the queue
+		 */
+		Exceed
+	}
+
+	/**
+	 * Wait until the queue is not full, or is closed. Senders wait here
+	 * before taking any lock, rather than in {@link #offer}, so that they
+	 * never hold up the writer while they wait for it.
+	 */
+	void awaitSpace() {
+		lock.lock();
+		try {
+			while(!closed && entries.size()>=capacity) {
+				notFull.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a frame to the queue.
+	 * @param frame the encoded frame, including its length header
+	 * @param future to complete when the frame is written, or null
+	 * @param full what to do if the queue is full
+	 * @return true if the frame was queued, false if the queue is closed, or
+	 * full and failing
+	 */
+	boolean offer(byte[] frame, CompletableFuture<Boolean> future, Full full) {
+		lock.lock();
+		try {
+			if(closed) return false;
+			if(entries.size()>=capacity && full==Full.Fail) return false;
+			entries.add(new Entry(frame,future));
+			bytes+=frame.length;
+			if(bytes>highWatermark) writable=false;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move all of the queued frames to the batch.
+	 * @param batch to add the frames to
+	 * @param wait whether to wait for a frame if the queue is empty
+	 * @return false if the queue is closed and there is nothing left to
+	 * take, true otherwise
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	boolean drain(List<Entry> batch, boolean wait) throws InterruptedException {
+		lock.lock();
+		try {
+			while(wait && !closed && entries.isEmpty()) {
+				notEmpty.await();
+			}
+			if(closed && entries.isEmpty()) return false;
+			batch.addAll(entries);
+			entries.clear();
+			notFull.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the writer once bytes of frames that it took from the queue
+	 * have been written.
+	 * @param count the number of bytes written
+	 */
+	void written(long count) {
+		lock.lock();
+		try {
+			bytes-=count;
+			if(!closed && bytes<=lowWatermark) writable=true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count bytes that are held back before they reach the queue, e.g. by a
+	 * protocol waiting for the other endpoint, as waiting to be written.
+	 * @param count bytes now held back, or negative for bytes no longer held
+	 */
+	void hold(long count) {
+		lock.lock();
+		try {
+			bytes+=count;
+			if(bytes>highWatermark) writable=false;
+			else if(!closed && bytes<=lowWatermark) writable=true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return false if the bytes waiting to be written went over the high
+	 * watermark and have not yet come down to the low watermark, or if the
+	 * queue is closed
+	 */
+	boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Change the watermarks.
+	 * @param lowWatermark
+	 * @param highWatermark
+	 */
+	void setWatermarks(int lowWatermark, int highWatermark) {
+		lock.lock();
+		try {
+			this.lowWatermark=lowWatermark;
+			this.highWatermark=highWatermark;
+			if(bytes>highWatermark) writable=false;
+			else if(!closed && bytes<=lowWatermark) writable=true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if there are no queued frames
+	 */
+	boolean isEmpty() {
+		lock.lock();
+		try {
+			return entries.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting frames, waking anyone waiting to add or take one.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed=true;
+			writable=false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close the queue and drop any frames that are still queued, because
+	 * they can no longer be written.
+	 */
+	void fail() {
+		lock.lock();
+		try {
+			closed=true;
+			writable=false;
+			entries.forEach((entry)->{entry.complete(false);});
+			entries.clear();
+			bytes=0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
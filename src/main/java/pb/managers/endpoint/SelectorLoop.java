@@ -0,0 +1,158 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * An event loop thread that owns a selector and any number of non-blocking
+ * socket channels, each wrapped in a {@link ChannelTransport}. All reads, and
+ * all writes that could not complete immediately, are carried out by this
+ * thread; so a single loop can serve many endpoints without a thread for each
+ * of them. Other threads hand work to the loop through queues and then wake
+ * the selector up.
+ *
+ * @see {@link pb.managers.endpoint.ChannelTransport}
+ * @see {@link pb.managers.endpoint.SelectorPool}
+ * @author aaron
+ *
+ */
+public class SelectorLoop extends Thread {
+	private static Logger log = Logger.getLogger(SelectorLoop.class.getName());
+
+	/**
+	 * Size of the read buffer that is shared by all channels on this loop.
+	 */
+	private static final int readBufferSize = 64*1024;
+
+	/**
+	 * The selector for this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Transports waiting to be registered with the selector.
+	 */
+	private final Queue<ChannelTransport> registrations;
+
+	/**
+	 * Transports that have data queued to write.
+	 */
+	private final Queue<ChannelTransport> pendingWrites;
+
+	/**
+	 * Only one channel is read at a time, so the read buffer is shared.
+	 */
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * Initialise the loop, the thread still needs to be started.
+	 * @param name of the thread
+	 * @throws IOException if the selector can't be opened
+	 */
+	public SelectorLoop(String name) throws IOException {
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<>();
+		pendingWrites = new ConcurrentLinkedQueue<>();
+		readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+		setName(name);
+	}
+
+	/**
+	 * Ask the loop to register the transport's channel with its selector.
+	 * Can be called from any thread.
+	 * @param transport
+	 */
+	void register(ChannelTransport transport) {
+		registrations.add(transport);
+		selector.wakeup();
+	}
+
+	/**
+	 * Ask the loop to write the transport's queued data. Can be called
+	 * from any thread.
+	 * @param transport
+	 */
+	void requestWrite(ChannelTransport transport) {
+		pendingWrites.add(transport);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if called by the thread of any selector loop, which must
+	 * never wait, e.g. for space in an outbound queue, as it may be the
+	 * thread that would make the space
+	 */
+	static boolean isLoopThread() {
+		return Thread.currentThread() instanceof SelectorLoop;
+	}
+
+	/**
+	 * Stop the loop. Channels that are still registered are left for
+	 * their endpoints to close.
+	 */
+	public void shutDown() {
+		interrupt();
+		selector.wakeup();
+	}
+
+	/**
+	 * Select on all of the channels until interrupted.
+	 */
+	@Override
+	public void run() {
+		log.info("selector loop started");
+		while(!isInterrupted() && selector.isOpen()) {
+			try {
+				selector.select();
+				ChannelTransport transport;
+				while((transport=registrations.poll())!=null) {
+					try {
+						transport.registered(selector);
+					} catch (RuntimeException e) {
+						transport.failed(e);
+					}
+				}
+				while((transport=pendingWrites.poll())!=null) {
+					try {
+						transport.writable();
+					} catch (RuntimeException e) {
+						transport.failed(e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					transport = (ChannelTransport) key.attachment();
+					// protocol and application callbacks run on this thread, a
+					// failure in one of them must only close its own endpoint
+					try {
+						if(!key.isValid()) continue;
+						if(key.isReadable()) transport.readable(readBuffer);
+						if(key.isValid() && key.isWritable()) transport.writable();
+					} catch (RuntimeException e) {
+						transport.failed(e);
+					}
+				}
+			} catch (IOException e) {
+				log.severe("selector failed: "+e.getMessage());
+				break;
+			} catch (ClosedSelectorException e) {
+				break;
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warning("selector did not close properly: "+e.getMessage());
+		}
+		log.info("selector loop terminated");
+	}
+}
@@ -0,0 +1,56 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+
+/**
+ * A small, fixed pool of {@link SelectorLoop} threads. New channels are
+ * spread over the loops in round robin order.
+ *
+ * @see {@link pb.managers.endpoint.SelectorLoop}
+ * @author aaron
+ *
+ */
+public class SelectorPool {
+	/**
+	 * The loops in this pool.
+	 */
+	private final SelectorLoop[] loops;
+
+	/**
+	 * Index of the next loop to hand out.
+	 */
+	private int next=0;
+
+	/**
+	 * Create and start the given number of selector loops.
+	 * @param numLoops number of event loop threads, at least 1
+	 * @throws IOException if a selector could not be opened
+	 */
+	public SelectorPool(int numLoops) throws IOException {
+		loops = new SelectorLoop[Math.max(1,numLoops)];
+		for(int i=0;i<loops.length;i++) {
+			loops[i]=new SelectorLoop("SelectorLoop-"+i);
+		}
+		for(SelectorLoop loop : loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * @return the loop that the next channel should be registered with
+	 */
+	public synchronized SelectorLoop next() {
+		SelectorLoop loop = loops[next];
+		next=(next+1)%loops.length;
+		return loop;
+	}
+
+	/**
+	 * Stop all of the loops.
+	 */
+	public void shutDown() {
+		for(SelectorLoop loop : loops) {
+			loop.shutDown();
+		}
+	}
+}
@@ -1,11 +1,16 @@
 package pb.protocols;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import org.json.simple.JSONValue;
 
 /**
  * Helper class for using JSON. Example usage:
@@ -27,46 +32,213 @@ import org.json.simple.parser.ParseException;
  * ArrayList<Document> docs2 = (ArrayList<Document>) doc3.get("docList");
  * }
  * </pre>
+ * A document keeps its members in a pair of small arrays rather than a map,
+ * in the order they were added. A document that is parsed only parses the
+ * objects and arrays in it when they are asked for, see {@link JsonReader},
+ * and keeps the text it was parsed from: members that are appended to it
+ * later are written after that text rather than encoding it all again.
  * @author aaron
  *
  */
 public class Document {
 	
+	/**
+	 * The members, if the document was made from a map, otherwise null.
+	 */
 	protected JSONObject obj;
 	
+	/**
+	 * Members, while obj is null. Values of a parsed document that are
+	 * objects or arrays are slices of the text until they are read.
+	 */
+	private String[] keys;
+	private Object[] values;
+	private int size;
+	
+	/**
+	 * Text of a parsed document and where the document is in it, so that
+	 * it can be sent on without encoding it again.
+	 */
+	private String json;
+	private int start;
+	private int end;
+	
+	/**
+	 * Number of members, from the first, that are in the text.
+	 */
+	private int sourced=0;
+	
+	/**
+	 * Whether a member that is in the text has been replaced, or one of its
+	 * objects or arrays read and so maybe changed, in which case the text is
+	 * out of date.
+	 */
+	private boolean changed=false;
+	
 	public Document(){
-		obj=new JSONObject();
+		this(null,8);
 	}
 	
 	public Document(JSONObject obj){
 		this.obj = obj;
 	}
 	
+	/**
+	 * A document that is being parsed, see {@link JsonReader}.
+	 * @param json the text being parsed
+	 */
+	Document(String json) {
+		this(json,8);
+	}
+	
+	private Document(String json, int capacity) {
+		this.json=json;
+		keys=new String[capacity];
+		values=new Object[capacity];
+	}
+	
+	/**
+	 * A copy of a parsed document whose values are all strings, numbers or
+	 * booleans, that shares its text; used as a template for documents that
+	 * always start with the same members.
+	 * @param extra number of members that are expected to be appended
+	 * @return the copy
+	 */
+	Document copy(int extra) {
+		Document doc=new Document(json,size+extra);
+		System.arraycopy(keys,0,doc.keys,0,size);
+		System.arraycopy(values,0,doc.values,0,size);
+		doc.size=size;
+		doc.start=start;
+		doc.end=end;
+		doc.sourced=sourced;
+		return doc;
+	}
+	
+	/**
+	 * Add a member, replacing any with the same key.
+	 * @param key
+	 * @param value
+	 */
+	void put(String key, Object value) {
+		int i=indexOf(key);
+		if(i>=0) {
+			values[i]=value;
+			if(i<sourced) changed=true;
+			return;
+		}
+		if(size==keys.length) {
+			keys=Arrays.copyOf(keys,size*2);
+			values=Arrays.copyOf(values,size*2);
+		}
+		keys[size]=key;
+		values[size]=value;
+		size++;
+	}
+	
+	/**
+	 * Record where the parsed document is in its text.
+	 * @param start
+	 * @param end
+	 */
+	void setSource(int start, int end) {
+		this.start=start;
+		this.end=end;
+		sourced=size;
+	}
+	
+	/**
+	 * @param key
+	 * @return index of the member, or -1
+	 */
+	private int indexOf(String key) {
+		for(int i=0;i<size;i++) {
+			if(keys[i]==key || keys[i].equals(key)) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param key
+	 * @return the value, with objects as documents and arrays as lists
+	 */
+	private Object value(String key) {
+		if(obj!=null) return obj.get(key);
+		int i=indexOf(key);
+		if(i<0) return null;
+		if(values[i] instanceof JsonReader.Slice) {
+			values[i]=((JsonReader.Slice) values[i]).parse();
+			if(i<sourced) changed=true;
+		}
+		return values[i];
+	}
+	
+	/**
+	 * Turn the document into a map, before it is put in a map.
+	 */
 	@SuppressWarnings("unchecked")
-	public void append(String key,String val){
-		if(val==null){
-			obj.put(key, null);
-		} else {
-			obj.put(key, new String(val));
+	private void materialize() {
+		if(obj!=null) return;
+		JSONObject map=new JSONObject();
+		for(int i=0;i<size;i++) map.put(keys[i], toJsonSimple(value(keys[i])));
+		obj=map;
+		keys=null;
+		values=null;
+		json=null;
+	}
+	
+	/**
+	 * @param value a value of a document
+	 * @return the value with documents as maps and lists as json arrays
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object toJsonSimple(Object value) {
+		if(value instanceof Document) {
+			return ((Document) value).jsonObject();
+		} else if(value instanceof ArrayList && !(value instanceof JSONArray)) {
+			JSONArray list = new JSONArray();
+			for(Object o : (ArrayList<?>) value) list.add(toJsonSimple(o));
+			return list;
 		}
+		return value;
+	}
+	
+	/**
+	 * @return the document as a map
+	 */
+	private JSONObject jsonObject() {
+		materialize();
+		return obj;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public void append(String key,String val){
+		if(obj==null) put(key, val);
+		else obj.put(key, val);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,Document doc){
-		obj.put(key, doc.obj);
+		if(obj==null) put(key, doc);
+		else obj.put(key, doc.jsonObject());
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,boolean val){
-		obj.put(key, Boolean.valueOf(val));
+		if(obj==null) put(key, Boolean.valueOf(val));
+		else obj.put(key, Boolean.valueOf(val));
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,ArrayList<?> val){
+		if(obj==null) {
+			put(key, new ArrayList<Object>(val));
+			return;
+		}
 		JSONArray list = new JSONArray();
 		for(Object o : val){
 			if(o instanceof Document){
-				list.add(((Document)o).obj);
+				list.add(((Document)o).jsonObject());
 			} else {
 				list.add(o);
 			}
@@ -76,36 +248,176 @@ public class Document {
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,long val){
-		obj.put(key, Long.valueOf(val));
+		if(obj==null) put(key, Long.valueOf(val));
+		else obj.put(key, Long.valueOf(val));
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void append(String key,int val){
-		obj.put(key, Integer.valueOf(val));
+		if(obj==null) put(key, Integer.valueOf(val));
+		else obj.put(key, Integer.valueOf(val));
+	}
+	
+	@SuppressWarnings("unchecked")
+	public void append(String key,double val){
+		if(obj==null) put(key, Double.valueOf(val));
+		else obj.put(key, Double.valueOf(val));
 	}
 	
 	public String toJson(){
-		return obj.toJSONString();
+		if(obj!=null) return obj.toJSONString();
+		if(json!=null && !changed && sourced==size) return json.substring(start,end);
+		StringBuilder sb = new StringBuilder(json!=null && !changed ? end-start+24*(size-sourced) : 64);
+		write(sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Write the document as JSON, reusing whatever part of its text is
+	 * still up to date.
+	 * @param sb
+	 */
+	private void write(StringBuilder sb) {
+		if(obj!=null) {
+			sb.append(obj.toJSONString());
+			return;
+		}
+		int i=0;
+		if(json!=null && !changed && sourced>0) {
+			// the text without its closing brace
+			sb.append(json,start,end-1);
+			i=sourced;
+		} else {
+			sb.append('{');
+		}
+		for(;i<size;i++) {
+			if(i>0) sb.append(',');
+			writeString(sb,keys[i]);
+			sb.append(':');
+			writeValue(sb,values[i]);
+		}
+		sb.append('}');
+	}
+	
+	private static void writeValue(StringBuilder sb, Object value) {
+		if(value==null) {
+			sb.append("null");
+		} else if(value instanceof String) {
+			String json = SharedStrings.json((String) value);
+			if(json!=null) sb.append(json);
+			else writeString(sb,(String) value);
+		} else if(value instanceof Long || value instanceof Integer) {
+			sb.append(((Number) value).longValue());
+		} else if(value instanceof Boolean) {
+			sb.append(((Boolean) value).booleanValue());
+		} else if(value instanceof Document) {
+			((Document) value).write(sb);
+		} else if(value instanceof JsonReader.Slice) {
+			JsonReader.Slice slice = (JsonReader.Slice) value;
+			sb.append(slice.json,slice.start,slice.end);
+		} else if(value instanceof List) {
+			sb.append('[');
+			List<?> list = (List<?>) value;
+			for(int i=0;i<list.size();i++) {
+				if(i>0) sb.append(',');
+				writeValue(sb,list.get(i));
+			}
+			sb.append(']');
+		} else {
+			sb.append(JSONValue.toJSONString(value));
+		}
+	}
+	
+	/**
+	 * Write a string with the same escapes as {@link JSONValue#escape(String)}.
+	 * @param sb
+	 * @param s
+	 */
+	static void writeString(StringBuilder sb, String s) {
+		sb.append('"');
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '/': sb.append("\\/"); break;
+			case '\b': sb.append("\\b"); break;
+			case '\f': sb.append("\\f"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if(c<='\u001F' || (c>='\u007F' && c<='\u009F') || (c>='\u2000' && c<='\u20FF')) {
+					String hex = Integer.toHexString(c).toUpperCase();
+					sb.append("\\u");
+					for(int k=hex.length();k<4;k++) sb.append('0');
+					sb.append(hex);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
 	}
 	
 	public static Document parse(String json) {
-		JSONParser parser = new JSONParser();
 		try {
-			JSONObject obj  = (JSONObject) parser.parse(json);
-			return new Document(obj);
-		} catch (ParseException e) {
-			return new Document();
-		} catch (ClassCastException e){
+			return JsonReader.parse(json);
+		} catch (IllegalArgumentException e) {
 			return new Document();
 		}
 	}
 	
 	public boolean containsKey(String key){
+		if(obj==null) return indexOf(key)>=0;
 		return obj.containsKey(key);
 	}
 	
+	/**
+	 * @return the keys, in the order they were added unless the document
+	 * was made from a map
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> keySet(){
+		if(obj==null) return new KeySet();
+		return obj.keySet();
+	}
+	
+	/**
+	 * The keys of a document whose members are in arrays.
+	 */
+	private class KeySet extends AbstractSet<String> {
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				private int next=0;
+
+				@Override
+				public boolean hasNext() {
+					return next<size;
+				}
+
+				@Override
+				public String next() {
+					if(next>=size) throw new NoSuchElementException();
+					return keys[next++];
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			return key instanceof String && indexOf((String) key)>=0;
+		}
+	}
+	
 	public String getString(String key){
-		return (String) obj.get(key);
+		return (String) value(key);
 	}
 	
 	private ArrayList<Object> getList(JSONArray o){
@@ -123,26 +435,29 @@ public class Document {
 	}
 	
 	public Object get(String key){
-		Object o = obj.get(key);
-		if(o instanceof JSONObject){
+		Object o = value(key);
+		if(obj==null && o instanceof ArrayList){
+			// copied so that changes to it are not seen here
+			return new ArrayList<Object>((ArrayList<?>) o);
+		} else if(o instanceof JSONObject){
 			return (Object) new Document((JSONObject) o);
 		} else if(o instanceof JSONArray){
 			return getList((JSONArray)o);
 		} else {
 			return o;
 		}
-		
+	
 	}
 	
 	public int getInteger(String key){
-		return (int) obj.get(key);
+		return (int) value(key);
 	}
 	
 	public long getLong(String key){
-		return (long) obj.get(key);
+		return (long) value(key);
 	}
 	
 	public boolean getBoolean(String key){
-		return (boolean) obj.get(key);
+		return (boolean) value(key);
 	}
 }
@@ -0,0 +1,344 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * A pull parser for the JSON text of messages, that reads straight from the
+ * string rather than building a tree of maps. The members of an object are
+ * read into a {@link Document} as they are found; values that are objects
+ * or arrays are checked but kept as a {@link Slice} of the text, which the
+ * document only parses if the value is asked for. Strings that are message
+ * names, protocol names or keys of the messages in this system are not
+ * copied out of the text, the constant is used instead; so a keep alive or
+ * an event acknowledgement allocates little more than its document.
+ *
+ * @see {@link pb.protocols.Document#parse(String)}
+ * @author aaron
+ *
+ */
+final class JsonReader {
+
+	/**
+	 * Deepest nesting of objects and arrays that is accepted.
+	 */
+	private static final int maxDepth = 256;
+
+	/**
+	 * Strings that are not copied when read, by length.
+	 */
+	private static final String[][] known = new String[32][];
+
+	static {
+		String[] strings = {
+			"name", "protocolName", "type", "timeoutId",
+			Message.Type.Request.toString(), Message.Type.Reply.toString(),
+			KeepAliveProtocol.protocolName, KeepAliveRequest.name, KeepAliveReply.name,
+			SessionProtocol.protocolName, SessionStartRequest.name, SessionStartReply.name,
+			SessionStopRequest.name, SessionStopReply.name,
+			EventProtocol.protocolName, EventRequest.name, EventReply.name,
+			EventBatchRequest.name,
+			"eventName", "eventData", "eventId", "events", "features", "seq", "ack",
+		};
+		for(String string : strings) {
+			String[] bucket = known[string.length()];
+			String[] grown = new String[bucket==null ? 1 : bucket.length+1];
+			if(bucket!=null) System.arraycopy(bucket,0,grown,0,bucket.length);
+			grown[grown.length-1]=string;
+			known[string.length()]=grown;
+		}
+	}
+
+	/**
+	 * An object or array in the text that has not been parsed yet.
+	 */
+	static final class Slice {
+		final String json;
+		final int start;
+		final int end;
+
+		Slice(String json, int start, int end) {
+			this.json=json;
+			this.start=start;
+			this.end=end;
+		}
+
+		/**
+		 * @return a document for an object, or a list for an array
+		 */
+		Object parse() {
+			JsonReader reader = new JsonReader(json,start);
+			return json.charAt(start)=='{' ? reader.readObject() : reader.readArray();
+		}
+	}
+
+	private final String json;
+	private int pos;
+
+	private JsonReader(String json, int pos) {
+		this.json=json;
+		this.pos=pos;
+	}
+
+	/**
+	 * Parse the text of a JSON object.
+	 * @param json
+	 * @return the document
+	 * @throws IllegalArgumentException if the text is not a JSON object
+	 */
+	static Document parse(String json) {
+		JsonReader reader = new JsonReader(json,0);
+		reader.skipWhitespace();
+		if(reader.peek()!='{') throw new IllegalArgumentException("not an object");
+		Document doc = reader.readObject();
+		reader.skipWhitespace();
+		if(reader.pos!=json.length()) throw new IllegalArgumentException("text after object");
+		return doc;
+	}
+
+	/**
+	 * Read an object, whose nested objects and arrays are left as slices.
+	 * @return the document
+	 */
+	private Document readObject() {
+		int start=pos;
+		expect('{');
+		Document doc = new Document(json);
+		skipWhitespace();
+		if(peek()=='}') {
+			pos++;
+			doc.setSource(start,pos);
+			return doc;
+		}
+		while(true) {
+			skipWhitespace();
+			if(peek()!='"') throw new IllegalArgumentException("expected key at "+pos);
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			Object value;
+			char c = peek();
+			if(c=='{' || c=='[') {
+				int valueStart=pos;
+				skipValue(1);
+				value = new Slice(json,valueStart,pos);
+			} else {
+				value = readScalar();
+			}
+			doc.put(key,value);
+			skipWhitespace();
+			char next = next();
+			if(next=='}') break;
+			if(next!=',') throw new IllegalArgumentException("expected , or } at "+pos);
+		}
+		doc.setSource(start,pos);
+		return doc;
+	}
+
+	/**
+	 * Read an array, with objects in it as documents and arrays as lists.
+	 * @return the list
+	 */
+	private ArrayList<Object> readArray() {
+		expect('[');
+		ArrayList<Object> list = new ArrayList<>();
+		skipWhitespace();
+		if(peek()==']') {
+			pos++;
+			return list;
+		}
+		while(true) {
+			skipWhitespace();
+			char c = peek();
+			if(c=='{') list.add(readObject());
+			else if(c=='[') list.add(readArray());
+			else list.add(readScalar());
+			skipWhitespace();
+			char next = next();
+			if(next==']') break;
+			if(next!=',') throw new IllegalArgumentException("expected , or ] at "+pos);
+		}
+		return list;
+	}
+
+	/**
+	 * @return a String, Long, Double, Boolean or null
+	 */
+	private Object readScalar() {
+		char c = peek();
+		switch(c) {
+		case '"': return readString();
+		case 't': literal("true"); return Boolean.TRUE;
+		case 'f': literal("false"); return Boolean.FALSE;
+		case 'n': literal("null"); return null;
+		default:
+			if(c=='-' || (c>='0' && c<='9')) return readNumber();
+			throw new IllegalArgumentException("unexpected "+c+" at "+pos);
+		}
+	}
+
+	private String readString() {
+		expect('"');
+		int start=pos;
+		while(true) {
+			char c = next();
+			if(c=='"') {
+				int length=pos-1-start;
+				if(length<known.length && known[length]!=null) {
+					for(String string : known[length]) {
+						if(json.regionMatches(start,string,0,length)) return string;
+					}
+				}
+				return json.substring(start,pos-1);
+			}
+			if(c=='\\') break;
+		}
+		// there are escapes, so the string has to be built
+		StringBuilder sb = new StringBuilder(json.length()-start);
+		sb.append(json,start,pos-1);
+		pos--;
+		while(true) {
+			char c = next();
+			if(c=='"') return sb.toString();
+			if(c!='\\') {
+				sb.append(c);
+				continue;
+			}
+			char e = next();
+			switch(e) {
+			case '"': case '\\': case '/': sb.append(e); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if(pos+4>json.length()) throw new IllegalArgumentException("bad escape at "+pos);
+				sb.append((char) Integer.parseInt(json.substring(pos,pos+4),16));
+				pos+=4;
+				break;
+			default: throw new IllegalArgumentException("bad escape at "+pos);
+			}
+		}
+	}
+
+	private Object readNumber() {
+		int start=pos;
+		boolean integer=true;
+		if(peek()=='-') pos++;
+		while(pos<json.length()) {
+			char c = json.charAt(pos);
+			if(c>='0' && c<='9') {
+				pos++;
+			} else if(c=='.' || c=='e' || c=='E' || c=='+' || c=='-') {
+				integer=false;
+				pos++;
+			} else {
+				break;
+			}
+		}
+		int digits = pos-start-(json.charAt(start)=='-' ? 1 : 0);
+		if(digits==0) throw new IllegalArgumentException("bad number at "+start);
+		if(!integer) return Double.valueOf(json.substring(start,pos));
+		if(digits>18) return Long.valueOf(json.substring(start,pos));
+		long value=0;
+		for(int i=pos-digits;i<pos;i++) value=value*10+(json.charAt(i)-'0');
+		return Long.valueOf(json.charAt(start)=='-' ? -value : value);
+	}
+
+	/**
+	 * Check the syntax of a value and move past it, without keeping it.
+	 * @param depth nesting of the value
+	 */
+	private void skipValue(int depth) {
+		if(depth>maxDepth) throw new IllegalArgumentException("nested too deeply");
+		char c = peek();
+		if(c=='{' || c=='[') {
+			char close = c=='{' ? '}' : ']';
+			pos++;
+			skipWhitespace();
+			if(peek()==close) {
+				pos++;
+				return;
+			}
+			while(true) {
+				skipWhitespace();
+				if(c=='{') {
+					if(peek()!='"') throw new IllegalArgumentException("expected key at "+pos);
+					skipString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+				}
+				skipValue(depth+1);
+				skipWhitespace();
+				char next = next();
+				if(next==close) return;
+				if(next!=',') throw new IllegalArgumentException("expected , at "+pos);
+			}
+		} else if(c=='"') {
+			skipString();
+		} else if(c=='t') {
+			literal("true");
+		} else if(c=='f') {
+			literal("false");
+		} else if(c=='n') {
+			literal("null");
+		} else {
+			readNumber();
+		}
+	}
+
+	private void skipString() {
+		expect('"');
+		while(true) {
+			char c = next();
+			if(c=='"') return;
+			if(c=='\\') {
+				char e = next();
+				if(e=='u') pos+=4;
+				else if("\"\\/bfnrt".indexOf(e)<0) throw new IllegalArgumentException("bad escape at "+pos);
+			}
+		}
+	}
+
+	private void literal(String literal) {
+		if(!json.startsWith(literal,pos)) throw new IllegalArgumentException("unexpected text at "+pos);
+		pos+=literal.length();
+	}
+
+	private void skipWhitespace() {
+		while(pos<json.length()) {
+			char c = json.charAt(pos);
+			if(c!=' ' && c!='\t' && c!='\n' && c!='\r') return;
+			pos++;
+		}
+	}
+
+	private void expect(char c) {
+		if(next()!=c) throw new IllegalArgumentException("expected "+c+" at "+(pos-1));
+	}
+
+	private char peek() {
+		if(pos>=json.length()) throw new IllegalArgumentException("unexpected end");
+		return json.charAt(pos);
+	}
+
+	private char next() {
+		if(pos>=json.length()) throw new IllegalArgumentException("unexpected end");
+		return json.charAt(pos++);
+	}
+}
@@ -1,11 +1,16 @@
 package pb.protocols;
 
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.protocols.event.EventBatchRequest;
 import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
 import pb.protocols.keepalive.KeepAliveRequest;
 import pb.protocols.session.SessionStartReply;
 import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStartRefused;
 import pb.protocols.session.SessionStopReply;
 import pb.protocols.session.SessionStopRequest;
 
@@ -32,6 +37,19 @@ public class Message {
 	 */
 	protected Document doc;
 	
+	/**
+	 * Most kinds of message whose envelope is kept in {@link #envelopes}.
+	 */
+	private static final int maxEnvelopes = 256;
+	
+	/**
+	 * The name, protocol name and type of each kind of message, parsed from
+	 * their JSON text once. The document of a new message is a copy of its
+	 * envelope, so that only the parameters added to it, e.g. the timeout id,
+	 * need encoding when it is sent.
+	 */
+	private static final ConcurrentHashMap<String,Document> envelopes = new ConcurrentHashMap<>();
+	
 	/**
 	 * Initialiser when given parameters explicitly.
 	 * @param name the name of the message (its classname by convention)
@@ -39,10 +57,27 @@ public class Message {
 	 * @param type whether its a Request or a Reply message
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
-		doc = new Document();
+		Document envelope = name==null ? null : envelopes.get(name);
+		if(envelope==null || !Objects.equals(protocolName, envelope.getString("protocolName"))
+				|| !type.toString().equals(envelope.getString("type"))) {
+			envelope = envelope(name, protocolName, type);
+			if(name!=null && envelopes.size()<maxEnvelopes) envelopes.putIfAbsent(name, envelope);
+		}
+		doc = envelope.copy(2);
+	}
+	
+	/**
+	 * @param name
+	 * @param protocolName
+	 * @param type
+	 * @return a parsed document with just the envelope of a message
+	 */
+	private static Document envelope(String name, String protocolName, Message.Type type) {
+		Document doc = new Document();
 		doc.append("name", name);
 		doc.append("protocolName", protocolName);
 		doc.append("type", type.toString());
+		return Document.parse(doc.toJson());
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -83,7 +118,16 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn a document into an appropriate message object.
+	 * @param doc the message parameters
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
@@ -95,10 +139,12 @@ public class Message {
 			case KeepAliveReply.name: return new KeepAliveReply(doc);
 			case SessionStartRequest.name: return new SessionStartRequest(doc);
 			case SessionStartReply.name: return new SessionStartReply(doc);
+			case SessionStartRefused.name: return new SessionStartRefused(doc);
 			case SessionStopRequest.name: return new SessionStopRequest(doc);
 			case SessionStopReply.name: return new SessionStopReply(doc);
 			case EventRequest.name: return new EventRequest(doc);
 			case EventReply.name: return new EventReply(doc);
+			case EventBatchRequest.name: return new EventBatchRequest(doc);
 			// put more message cases here
 			
 			// if nothing matches, its invalid
@@ -106,6 +152,13 @@ public class Message {
 		}
 	}
 	
+	/**
+	 * @return the document holding all of the message parameters
+	 */
+	public Document getDocument() {
+		return doc;
+	}
+	
 	/**
 	 * Convert the message to a string for transmission.
 	 * @return
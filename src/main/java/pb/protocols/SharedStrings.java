@@ -0,0 +1,114 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Strings that are encoded once, with the encoding shared by every message
+ * that carries them, e.g. the data of an event that is broadcast to many
+ * endpoints. While a string is shared, {@link Document#toJson()} and the
+ * binary codec take its escaped JSON and its UTF-8 bytes from here rather
+ * than encoding it again for every message. Only strings of at least
+ * {@link #minLength} characters are shared, and they are only looked up
+ * while some string is shared, so that other messages pay next to nothing.
+ * <br/>
+ * A string is shared until it has been released as many times as it was
+ * shared; a message encoded after that, e.g. an event sent again when a
+ * session resumes, simply encodes it again.
+ *
+ * @see {@link pb.managers.ServerManager#broadcast(String, String, java.util.function.Predicate)}
+ * @author aaron
+ *
+ */
+public final class SharedStrings {
+	
+	/**
+	 * Shortest string worth sharing.
+	 */
+	public static final int minLength = 64;
+	
+	/**
+	 * The encodings of a shared string, each made when it is first needed,
+	 * and the number of times the string has been shared and not released.
+	 * Two threads may both make an encoding, which does no harm.
+	 */
+	private static final class Encoding {
+		final String s;
+		volatile String json;
+		volatile byte[] utf8;
+		int refs=1;
+		
+		Encoding(String s) {
+			this.s=s;
+		}
+		
+		String json() {
+			if(json==null) {
+				StringBuilder sb = new StringBuilder(s.length()+16);
+				Document.writeString(sb,s);
+				json=sb.toString();
+			}
+			return json;
+		}
+		
+		byte[] utf8() {
+			if(utf8==null) utf8=s.getBytes(StandardCharsets.UTF_8);
+			return utf8;
+		}
+	}
+	
+	private static final ConcurrentHashMap<String,Encoding> shared=new ConcurrentHashMap<>();
+	
+	private SharedStrings() {
+		
+	}
+	
+	/**
+	 * Share the encodings of a string, until it is released.
+	 * @param s
+	 * @return false if the string is too short to be shared, in which case
+	 * it must not be released
+	 */
+	public static boolean share(String s) {
+		if(s.length()<minLength) return false;
+		shared.compute(s,(key,encoding)->{
+			if(encoding==null) return new Encoding(key);
+			encoding.refs++;
+			return encoding;
+		});
+		return true;
+	}
+	
+	/**
+	 * Stop sharing a string, once for each time it was shared.
+	 * @param s
+	 */
+	public static void release(String s) {
+		shared.computeIfPresent(s,(key,encoding)->--encoding.refs==0 ? null : encoding);
+	}
+	
+	/**
+	 * @param s
+	 * @return the string as a quoted and escaped JSON string, or null if it
+	 * is not shared
+	 */
+	public static String json(String s) {
+		Encoding encoding=lookup(s);
+		return encoding==null ? null : encoding.json();
+	}
+	
+	/**
+	 * @param s
+	 * @return the UTF-8 bytes of the string, which must not be changed, or
+	 * null if it is not shared
+	 */
+	public static byte[] utf8(String s) {
+		Encoding encoding=lookup(s);
+		return encoding==null ? null : encoding.utf8();
+	}
+	
+	private static Encoding lookup(String s) {
+		if(s.length()<minLength || shared.isEmpty()) return null;
+		return shared.get(s);
+	}
+}
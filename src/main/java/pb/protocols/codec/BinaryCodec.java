@@ -0,0 +1,424 @@
+package pb.protocols.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.SharedStrings;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStartRefused;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * A compact binary encoding of messages. A message is encoded as:
+ * <ol>
+ * <li>a one byte message type id, from {@link #messageTypes}; or 0 followed by
+ * the name, protocol name and type of a message that has no id</li>
+ * <li>the timeout id as a varint, 0 if there is none</li>
+ * <li>the number of other parameters as a varint, followed by each parameter
+ * as a key and a tagged value</li>
+ * </ol>
+ * Keys that are in {@link #keys} are sent as a one byte index, others as
+ * 0 followed by the key. Strings are a varint length followed by UTF-8 bytes
+ * and integers are zig-zag varints. The tables may only be appended to, and
+ * new entries should only be sent once a feature that implies them has been
+ * agreed, so that peers of different versions can still talk to each other.
+ *
+ * @see {@link pb.protocols.codec.IMessageCodec}
+ * @author aaron
+ *
+ */
+public class BinaryCodec implements IMessageCodec {
+
+	/**
+	 * Message name, protocol name and type of each message type id. The
+	 * index in the table is the id; 0 is reserved.
+	 */
+	private static final String[][] messageTypes = {
+		null,
+		{KeepAliveRequest.name, KeepAliveProtocol.protocolName, "Request"},
+		{KeepAliveReply.name, KeepAliveProtocol.protocolName, "Reply"},
+		{SessionStartRequest.name, SessionProtocol.protocolName, "Request"},
+		{SessionStartReply.name, SessionProtocol.protocolName, "Reply"},
+		{SessionStopRequest.name, SessionProtocol.protocolName, "Request"},
+		{SessionStopReply.name, SessionProtocol.protocolName, "Reply"},
+		{EventRequest.name, EventProtocol.protocolName, "Request"},
+		{EventReply.name, EventProtocol.protocolName, "Reply"},
+		{EventBatchRequest.name, EventProtocol.protocolName, "Request"},
+		{SessionStartRefused.name, SessionProtocol.protocolName, "Reply"},
+	};
+
+	/**
+	 * Parameter keys that are sent as a one byte index; 0 is reserved.
+	 */
+	private static final String[] keys = {
+		null,
+		"eventName",
+		"eventData",
+		"features",
+		"seq",
+		"ack",
+		"events",
+		"eventId",
+	};
+
+	/*
+	 * Value tags
+	 */
+	private static final int tagNull=0;
+	private static final int tagString=1;
+	private static final int tagLong=2;
+	private static final int tagTrue=3;
+	private static final int tagFalse=4;
+	private static final int tagList=5;
+	private static final int tagDocument=6;
+	private static final int tagDouble=7;
+
+	/**
+	 * Message name to message type id.
+	 */
+	private static final Map<String,Integer> messageTypeIds = new HashMap<>();
+
+	/**
+	 * Key to key index.
+	 */
+	private static final Map<String,Integer> keyIds = new HashMap<>();
+
+	/**
+	 * Largest buffer that a thread keeps for encoding its next message.
+	 */
+	private static final int maxScratch = 64*1024;
+
+	/**
+	 * Deepest nesting of lists and documents that is accepted, as for JSON.
+	 */
+	private static final int maxDepth = 256;
+
+	/**
+	 * The buffer each thread encodes into, so that the only array made for
+	 * a message is the one that is sent.
+	 */
+	private static final ThreadLocal<Output> scratch = ThreadLocal.withInitial(Output::new);
+
+	static {
+		for(int i=1;i<messageTypes.length;i++) messageTypeIds.put(messageTypes[i][0], i);
+		for(int i=1;i<keys.length;i++) keyIds.put(keys[i], i);
+	}
+
+	@Override
+	public byte[] encode(Message msg) {
+		return encode(msg, false);
+	}
+
+	/**
+	 * Encode a message straight into a frame.
+	 */
+	@Override
+	public byte[] encodeFrame(Message msg) {
+		return encode(msg, true);
+	}
+
+	/**
+	 * @param msg
+	 * @param frame whether to start with the four byte frame length
+	 * @return the encoded bytes
+	 */
+	private static byte[] encode(Message msg, boolean frame) {
+		Document doc = msg.getDocument();
+		Output out = scratch.get();
+		out.reset();
+		if(frame) out.writeInt(0);
+		Integer typeId = messageTypeIds.get(msg.getName());
+		if(typeId!=null) {
+			out.write(typeId);
+		} else {
+			out.write(0);
+			out.writeString(msg.getName());
+			out.writeString(msg.getProtocolName());
+			out.writeString(msg.getType().toString());
+		}
+		out.writeVarLong(msg.getTimeoutId());
+		writeParams(out, doc, true);
+		if(frame) out.setInt(0, out.size()-4);
+		byte[] bytes = out.toByteArray();
+		if(out.capacity()>maxScratch) scratch.remove();
+		return bytes;
+	}
+
+	@Override
+	public Message decode(byte[] buffer, int offset, int length) throws InvalidMessage {
+		Input in = new Input(buffer, offset, length);
+		Document doc = new Document();
+		int typeId = in.read();
+		if(typeId>=messageTypes.length) throw new InvalidMessage();
+		if(typeId!=0) {
+			doc.append("name", messageTypes[typeId][0]);
+			doc.append("protocolName", messageTypes[typeId][1]);
+			doc.append("type", messageTypes[typeId][2]);
+		} else {
+			doc.append("name", in.readString());
+			doc.append("protocolName", in.readString());
+			doc.append("type", in.readString());
+		}
+		long timeoutId = in.readVarLong();
+		if(timeoutId!=0) doc.append("timeoutId", timeoutId);
+		readParams(in, doc, 0);
+		if(in.remaining()!=0) throw new InvalidMessage();
+		return Message.toMessage(doc);
+	}
+
+	/**
+	 * @param key
+	 * @return true if the key is part of the message envelope
+	 */
+	private static boolean isEnvelope(String key) {
+		switch(key) {
+		case "name":
+		case "protocolName":
+		case "type":
+		case "timeoutId":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param out
+	 * @param doc
+	 * @param message whether the document is a message, whose envelope
+	 * has already been written
+	 */
+	private static void writeParams(Output out, Document doc, boolean message) {
+		int count=0;
+		for(String key : doc.keySet()) {
+			if(!message || !isEnvelope(key)) count++;
+		}
+		out.writeVarLong(count);
+		for(String key : doc.keySet()) {
+			if(message && isEnvelope(key)) continue;
+			Integer keyId = keyIds.get(key);
+			if(keyId!=null) {
+				out.write(keyId);
+			} else {
+				out.write(0);
+				out.writeString(key);
+			}
+			writeValue(out, doc.get(key));
+		}
+	}
+
+	private static void writeValue(Output out, Object value) {
+		if(value==null) {
+			out.write(tagNull);
+		} else if(value instanceof String) {
+			out.write(tagString);
+			out.writeString((String) value);
+		} else if(value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			out.write(tagLong);
+			long v = ((Number) value).longValue();
+			out.writeVarLong((v<<1)^(v>>63));
+		} else if(value instanceof Boolean) {
+			out.write((Boolean) value ? tagTrue : tagFalse);
+		} else if(value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.write(tagList);
+			out.writeVarLong(list.size());
+			for(Object o : list) writeValue(out, o);
+		} else if(value instanceof Document) {
+			Document doc = (Document) value;
+			out.write(tagDocument);
+			writeParams(out, doc, false);
+		} else if(value instanceof Double || value instanceof Float) {
+			out.write(tagDouble);
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			for(int i=56;i>=0;i-=8) out.write((int)(bits>>>i));
+		} else {
+			throw new IllegalArgumentException("can not encode a "+value.getClass().getName());
+		}
+	}
+
+	private static void readParams(Input in, Document doc, int depth) throws InvalidMessage {
+		long count = in.readVarLong();
+		for(long i=0;i<count;i++) {
+			int keyId = in.read();
+			String key;
+			if(keyId==0) {
+				key = in.readString();
+			} else if(keyId<keys.length) {
+				key = keys[keyId];
+			} else {
+				throw new InvalidMessage();
+			}
+			Object value = readValue(in, depth);
+			if(value==null) {
+				doc.append(key, (String) null);
+			} else if(value instanceof String) {
+				doc.append(key, (String) value);
+			} else if(value instanceof Long) {
+				doc.append(key, (long) value);
+			} else if(value instanceof Boolean) {
+				doc.append(key, (boolean) value);
+			} else if(value instanceof ArrayList) {
+				doc.append(key, (ArrayList<?>) value);
+			} else if(value instanceof Document) {
+				doc.append(key, (Document) value);
+			} else {
+				doc.append(key, (double) value);
+			}
+		}
+	}
+
+	private static Object readValue(Input in, int depth) throws InvalidMessage {
+		int tag = in.read();
+		switch(tag) {
+		case tagNull:
+			return null;
+		case tagString:
+			return in.readString();
+		case tagLong:
+			long v = in.readVarLong();
+			return Long.valueOf((v>>>1)^-(v&1));
+		case tagTrue:
+			return Boolean.TRUE;
+		case tagFalse:
+			return Boolean.FALSE;
+		case tagList:
+			if(depth>=maxDepth) throw new InvalidMessage();
+			long size = in.readVarLong();
+			if(size<0 || size>in.remaining()) throw new InvalidMessage();
+			ArrayList<Object> list = new ArrayList<>((int) size);
+			for(long i=0;i<size;i++) list.add(readValue(in, depth+1));
+			return list;
+		case tagDocument:
+			if(depth>=maxDepth) throw new InvalidMessage();
+			Document doc = new Document();
+			readParams(in, doc, depth+1);
+			return doc;
+		case tagDouble:
+			long bits=0;
+			for(int i=0;i<8;i++) bits=(bits<<8)|in.read();
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		default:
+			throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * Growable output with varint and string writes. Unlike a
+	 * ByteArrayOutputStream it is not synchronized, as each thread has its own.
+	 */
+	private static class Output {
+		private byte[] buf = new byte[64];
+		private int count = 0;
+
+		void reset() {
+			count=0;
+		}
+
+		int size() {
+			return count;
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, count);
+		}
+
+		void write(int b) {
+			if(count==buf.length) buf=Arrays.copyOf(buf, count*2);
+			buf[count++]=(byte) b;
+		}
+
+		void write(byte[] bytes, int offset, int length) {
+			if(count+length>buf.length) buf=Arrays.copyOf(buf, Math.max(count*2, count+length));
+			System.arraycopy(bytes, offset, buf, count, length);
+			count+=length;
+		}
+
+		void writeInt(int v) {
+			for(int i=24;i>=0;i-=8) write(v>>>i);
+		}
+
+		void setInt(int pos, int v) {
+			for(int i=0;i<4;i++) buf[pos+i]=(byte)(v>>>(24-8*i));
+		}
+
+		void writeVarLong(long v) {
+			while((v & ~0x7fL)!=0) {
+				write((int)((v & 0x7f) | 0x80));
+				v>>>=7;
+			}
+			write((int) v);
+		}
+
+		void writeString(String s) {
+			byte[] bytes = SharedStrings.utf8(s);
+			if(bytes==null) bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Bounds checked input over part of an array.
+	 */
+	private static class Input {
+		private final byte[] buffer;
+		private int pos;
+		private final int end;
+
+		Input(byte[] buffer, int offset, int length) {
+			this.buffer=buffer;
+			this.pos=offset;
+			this.end=offset+length;
+		}
+
+		int remaining() {
+			return end-pos;
+		}
+
+		int read() throws InvalidMessage {
+			if(pos>=end) throw new InvalidMessage();
+			return buffer[pos++] & 0xff;
+		}
+
+		long readVarLong() throws InvalidMessage {
+			long v=0;
+			for(int shift=0;shift<64;shift+=7) {
+				int b = read();
+				v |= (long)(b & 0x7f)<<shift;
+				if((b & 0x80)==0) return v;
+			}
+			throw new InvalidMessage();
+		}
+
+		String readString() throws InvalidMessage {
+			long length = readVarLong();
+			if(length<0 || length>remaining()) throw new InvalidMessage();
+			String s = new String(buffer, pos, (int) length, StandardCharsets.UTF_8);
+			pos+=(int) length;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package pb.protocols.codec;
+
+import java.nio.ByteBuffer;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Converts messages to and from the bytes that are carried in a binary
+ * frame. The codec used on a connection is agreed when the session starts;
+ * {@link JsonCodec} is used unless both ends support something better.
+ * 
+ * @see {@link pb.protocols.codec.JsonCodec}
+ * @see {@link pb.protocols.codec.BinaryCodec}
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @author aaron
+ *
+ */
+public interface IMessageCodec {
+	/**
+	 * Encode a message.
+	 * @param msg
+	 * @return the encoded bytes
+	 */
+	public byte[] encode(Message msg);
+	
+	/**
+	 * Encode a message as a binary frame, i.e. a four byte length followed
+	 * by the bytes that {@link #encode(Message)} gives.
+	 * @param msg
+	 * @return the frame bytes
+	 */
+	public default byte[] encodeFrame(Message msg) {
+		byte[] payload = encode(msg);
+		byte[] frame = new byte[4+payload.length];
+		ByteBuffer.wrap(frame).putInt(payload.length).put(payload);
+		return frame;
+	}
+	
+	/**
+	 * Decode a message.
+	 * @param buffer holding the encoded bytes
+	 * @param offset of the first byte
+	 * @param length number of bytes
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if the bytes are not a valid message
+	 */
+	public Message decode(byte[] buffer, int offset, int length) throws InvalidMessage;
+}
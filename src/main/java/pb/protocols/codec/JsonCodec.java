@@ -0,0 +1,27 @@
+package pb.protocols.codec;
+
+import java.nio.charset.StandardCharsets;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Encodes messages as UTF-8 JSON, the same text that is sent with
+ * writeUTF framing. Understood by every peer.
+ * 
+ * @see {@link pb.protocols.codec.IMessageCodec}
+ * @author aaron
+ *
+ */
+public class JsonCodec implements IMessageCodec {
+
+	@Override
+	public byte[] encode(Message msg) {
+		return msg.toJsonString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Message decode(byte[] buffer, int offset, int length) throws InvalidMessage {
+		return Message.toMessage(new String(buffer, offset, length, StandardCharsets.UTF_8));
+	}
+}
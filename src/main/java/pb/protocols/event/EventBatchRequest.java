@@ -0,0 +1,142 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Any number of events in a single request, each as an [eventName,eventData]
+ * pair, that are emitted in order by the receiver. Only sent when the
+ * {@link EventProtocol#eventBatch} feature has been agreed.
+ * <br/>
+ * When the {@link EventProtocol#eventIds} feature is in use an event can be
+ * sent as [eventId,eventData] instead, or as [eventId,eventData,eventName] to
+ * tell the other side the name of the id.
+ * @author aaron
+ *
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+
+	private final List<String> eventNames;
+	private final long[] eventIds;
+	private final List<String> eventData;
+
+	/**
+	 * @param eventNames
+	 * @param eventData the data for each of the event names
+	 */
+	public EventBatchRequest(List<String> eventNames, List<String> eventData) {
+		this(eventNames,null,eventData,0);
+	}
+
+	/**
+	 * Events with a sequence number, sent when the event window is in use.
+	 * The batch as a whole has the one sequence number.
+	 * @param eventNames
+	 * @param eventData
+	 * @param seq
+	 */
+	public EventBatchRequest(List<String> eventNames, List<String> eventData, long seq) {
+		this(eventNames,null,eventData,seq);
+	}
+
+	/**
+	 * Events that may use event ids in place of their names.
+	 * @param eventNames the names, each null if its id is already known
+	 * @param eventIds the ids, each 0 for none, or null for no ids at all
+	 * @param eventData
+	 * @param seq sequence number, or 0 for none
+	 */
+	public EventBatchRequest(List<String> eventNames, long[] eventIds, List<String> eventData,
+			long seq) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		ArrayList<ArrayList<Object>> events = new ArrayList<>(eventNames.size());
+		for(int i=0;i<eventNames.size();i++) {
+			ArrayList<Object> event = new ArrayList<>(3);
+			long id = eventIds==null ? 0 : eventIds[i];
+			event.add(id==0 ? eventNames.get(i) : Long.valueOf(id));
+			event.add(eventData.get(i));
+			if(id!=0 && eventNames.get(i)!=null) event.add(eventNames.get(i));
+			events.add(event);
+		}
+		doc.append("events", events);
+		if(seq!=0) doc.append("seq", seq);
+		this.eventNames=eventNames;
+		this.eventIds=eventIds==null ? new long[eventNames.size()] : eventIds;
+		this.eventData=eventData;
+	}
+
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		if(doc.containsKey("seq")) Message.validateLongType("seq", doc);
+		Object events = doc.get("events");
+		if(!(events instanceof ArrayList)) throw new InvalidMessage();
+		ArrayList<?> list = (ArrayList<?>) events;
+		eventNames = new ArrayList<>(list.size());
+		eventIds = new long[list.size()];
+		eventData = new ArrayList<>(list.size());
+		for(int i=0;i<list.size();i++) {
+			if(!(list.get(i) instanceof ArrayList)) throw new InvalidMessage();
+			ArrayList<?> event = (ArrayList<?>) list.get(i);
+			if(event.size()<2 || event.size()>3 || !(event.get(1) instanceof String))
+				throw new InvalidMessage();
+			Object key = event.get(0);
+			if(key instanceof String && event.size()==2) {
+				eventNames.add((String) key);
+			} else if(key instanceof Long) {
+				eventIds[i]=(Long) key;
+				if(event.size()==3 && !(event.get(2) instanceof String)) throw new InvalidMessage();
+				eventNames.add(event.size()==3 ? (String) event.get(2) : null);
+			} else {
+				throw new InvalidMessage();
+			}
+			eventData.add((String) event.get(1));
+		}
+		this.doc=doc;
+	}
+
+	/**
+	 * @return the number of events
+	 */
+	public int size() {
+		return eventNames.size();
+	}
+
+	/**
+	 * @param index
+	 * @return the event name, or null if only its id was sent
+	 */
+	public String getEventName(int index) {
+		return eventNames.get(index);
+	}
+
+	/**
+	 * @param index
+	 * @return the event id, or 0 if there is none
+	 */
+	public long getEventId(int index) {
+		return eventIds[index];
+	}
+
+	public String getEventData(int index) {
+		return eventData.get(index);
+	}
+
+	/**
+	 * @return true if the batch has a sequence number
+	 */
+	public boolean hasSeq() {
+		return doc.containsKey("seq");
+	}
+
+	/**
+	 * @return the sequence number, or 0 if there is none
+	 */
+	public long getSeq() {
+		return hasSeq() ? doc.getLong("seq") : 0;
+	}
+}
@@ -1,5 +1,12 @@
 package pb.protocols.event;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -7,11 +14,47 @@ import pb.managers.endpoint.Endpoint;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.session.SessionProtocol;
+import pb.utils.HashedWheelTimer;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * Normally each event is a request that the other side replies to, with a
+ * timeout for each one. If both ends agree on the {@link #eventWindow} feature
+ * then events are numbered instead, and up to {@link #windowSize} of them can
+ * be in flight without being acknowledged. The receiver acknowledges them
+ * cumulatively, with a single reply once {@link #ackEvery} events have been
+ * received or {@link #ackDelay} ms after the first unacknowledged one; and the
+ * sender only has a single timeout, which is restarted whenever an
+ * acknowledgement arrives. Events emitted while the window is full are held
+ * back, in order, until acknowledgements open it again; they count toward the
+ * endpoint's write watermarks, so it is not {@link Endpoint#isWritable()}
+ * while they pile up.
+ * <br/>
+ * If both ends agree on the {@link #eventBatch} feature then events emitted
+ * within {@link #batchLinger} ms of each other are sent together as a single
+ * {@link EventBatchRequest}, up to {@link #batchMaxBytes}, and the receiver
+ * emits them in the same order. A batch counts as one request in the window.
+ * Use {@link #flush()} to send lingering events straight away.
+ * <br/>
+ * If both ends agree on the {@link #eventIds} feature then each side gives
+ * the names of the events it sends small ids, up to {@link #maxEventIds} of
+ * them. The first request with a name carries both the name and its id, and
+ * later ones only the id, which the receiver turns back into the same String
+ * object each time, so its hash code is only ever computed once.
+ * <br/>
+ * If both ends agree on the {@link SessionProtocol#sessionResume} feature
+ * then the requests in flight are kept until they are acknowledged, so that
+ * when the connection is lost the manager can {@link #suspend()} the
+ * protocol and later {@link #resume(Endpoint, long)} it on a new endpoint,
+ * sending again the requests that the other side did not receive. Events
+ * emitted while suspended are held back, up to {@link #maxSuspendedHeld}
+ * requests, after which the session can no longer be resumed. Requests that
+ * were already received are dropped, so that no event is emitted twice.
  * @author aaron
  *
  */
@@ -20,10 +63,198 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
+	/**
+	 * Feature name, negotiated when the session starts, for sending events
+	 * in a window with cumulative acknowledgements.
+	 */
+	public static final String eventWindow = "eventWindow";
+	
+	/**
+	 * Feature name, negotiated when the session starts, for sending events
+	 * that are emitted close together in batches.
+	 */
+	public static final String eventBatch = "eventBatch";
+	
+	/**
+	 * Feature name, negotiated when the session starts, for sending event
+	 * ids in place of event names.
+	 */
+	public static final String eventIds = "eventIds";
+	
 	public int eventTimeout = 40000;
 	
+	/**
+	 * Most requests, each a single event or a batch of them, that can be sent
+	 * without being acknowledged, when the event window is in use.
+	 */
+	public int windowSize = 256;
+	
+	/**
+	 * Number of requests received after which they are acknowledged, should
+	 * be well under the other side's window size.
+	 */
+	public int ackEvery = 32;
+	
+	/**
+	 * Time in ms after receiving a request by which it is acknowledged.
+	 */
+	public int ackDelay = 20;
+	
+	/**
+	 * Time in ms that an event waits for others to be batched with it, when
+	 * batching is in use.
+	 */
+	public int batchLinger = 5;
+	
+	/**
+	 * Characters of event names and data over which a batch is sent straight
+	 * away, kept well under the 64KB limit of a frame before binary framing.
+	 */
+	public int batchMaxBytes = 16*1024;
+	
+	/**
+	 * Most event names that are given ids, names after that are always sent
+	 * in full, e.g. when names are made from board names.
+	 */
+	public int maxEventIds = 1024;
+	
+	/**
+	 * Most requests that are held back while the protocol is suspended,
+	 * over which events are dropped and the session cannot be resumed.
+	 */
+	public int maxSuspendedHeld = 4096;
+	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Whether the requests in flight are kept until they are acknowledged,
+	 * so that the session can be resumed.
+	 */
+	private final boolean resumable;
+	
+	/**
+	 * Whether the connection was lost and the protocol is waiting to be
+	 * resumed on a new endpoint.
+	 */
+	private volatile boolean suspended=false;
+	
+	/**
+	 * Whether events were dropped while suspended.
+	 */
+	private volatile boolean overflowed=false;
+	
+	/**
+	 * Guards the sending side of the window and the event ids sent, so that
+	 * requests are made and sent in the same order.
+	 */
+	private final ReentrantLock windowLock=new ReentrantLock();
+	
+	/**
+	 * Ids given to event names sent, the first id is 1.
+	 */
+	private final HashMap<String,Long> sentIds=new HashMap<>();
+	
+	/**
+	 * Sequence number for the next request.
+	 */
+	private long nextSeq=1;
+	
+	/**
+	 * Sequence number of the last request sent.
+	 */
+	private long sent=0;
+	
+	/**
+	 * Sequence number of the last request acknowledged by the other side.
+	 */
+	private long acked=0;
+	
+	/**
+	 * Requests waiting for the window to open.
+	 */
+	private final ArrayDeque<Message> held=new ArrayDeque<>();
+	
+	/**
+	 * Bytes of event data in {@link #held}, and how many of them the endpoint
+	 * has been told about, so that they count toward its watermarks.
+	 */
+	private long heldBytes=0;
+	private long heldCounted=0;
+	
+	/**
+	 * Callbacks to run once requests that are held back have been encoded.
+	 */
+	private final IdentityHashMap<Message,List<Runnable>> heldEncoded=new IdentityHashMap<>();
+	
+	/**
+	 * Requests sent and not yet acknowledged, in order, when the session can
+	 * be resumed; no more than {@link #windowSize} of them.
+	 */
+	private final ArrayDeque<Message> unacked=new ArrayDeque<>();
+	
+	/**
+	 * Times out if the requests in flight are not acknowledged.
+	 */
+	private HashedWheelTimer.Timeout ackTimeout=null;
+	
+	/**
+	 * Guards the receiving side of the window.
+	 */
+	private final ReentrantLock ackLock=new ReentrantLock();
+	
+	/**
+	 * Sequence number of the last request received.
+	 */
+	private long received=0;
+	
+	/**
+	 * Sequence number of the last request that this side acknowledged.
+	 */
+	private long ackSent=0;
+	
+	/**
+	 * Sends a delayed acknowledgement.
+	 */
+	private HashedWheelTimer.Timeout delayedAck=null;
+	
+	/**
+	 * Names of the event ids received, id i at index i-1. Requests are
+	 * received one at a time by the endpoint, so no lock is needed.
+	 */
+	private final ArrayList<String> receivedNames=new ArrayList<>();
+	
+	/**
+	 * Guards the batch being collected, and is taken before the window lock.
+	 */
+	private final ReentrantLock batchLock=new ReentrantLock();
+	
+	/**
+	 * Events collected for the next batch.
+	 */
+	private ArrayList<String> batchNames=new ArrayList<>();
+	private ArrayList<String> batchData=new ArrayList<>();
+	
+	/**
+	 * Callbacks of the events in the batch that are to be run once the
+	 * batch has been encoded, see {@link #offerEvent(String, String, Runnable)}.
+	 */
+	private ArrayList<Runnable> batchEncoded=new ArrayList<>();
+	
+	/**
+	 * Characters of event names and data in the batch.
+	 */
+	private int batchBytes=0;
+	
+	/**
+	 * Sends the batch once it has lingered.
+	 */
+	private HashedWheelTimer.Timeout lingerTimeout=null;
+	
+	/**
+	 * Sends the events emitted on the endpoint.
+	 */
+	private final IWildcardCallback forwarder;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -32,18 +263,27 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager) {
 		super(endpoint, (Manager)manager);	
-		// Register an event to listen for all events ("*") emitted on this endpoint and
+		resumable=endpoint.hasFeature(SessionProtocol.sessionResume)
+				&& endpoint.hasFeature(eventWindow);
+		// Register a callback for all events emitted on this endpoint, to
 		// send them to the remote end point; making sure thats events have
 		// only a String argument
-		endpoint.on("*", (args)->{
-			String eventName = (String) args[0];
-			if(args.length==2 && args[1] instanceof String) {
-				String eventData = (String) args[1];
+		forwarder = new IWildcardCallback() {
+			@Override
+			public void callback(String eventName, Object[] args) {
+				if(args.length==1 && args[0] instanceof String) {
+					sendEvent(eventName,(String) args[0]);
+				} else {
+					log.warning("emitted event must have only a single String data argument: "+eventName);
+				}
+			}
+			
+			@Override
+			public void callback(String eventName, String eventData) {
 				sendEvent(eventName,eventData);
-			} else {
-				log.warning("emitted event must have only a single String data argument: "+eventName);
-			}			
-		});
+			}
+		};
+		endpoint.onAny(forwarder);
 	}
 	
 	/**
@@ -53,12 +293,447 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		// sends made while holding the locks below must not wait
+		endpoint.awaitSendSpace();
+		queueEvent(eventName,eventData,null);
+	}
+	
+	/**
+	 * Send an event if the endpoint is writable, without ever waiting for
+	 * it, e.g. for an event that is broadcast to many sessions by a thread
+	 * that must not be held up by any one of them. While the protocol is
+	 * suspended the event is held back as usual.
+	 * @param eventName
+	 * @param eventData
+	 * @param encoded run once the event has been encoded, or dropped, e.g. to
+	 * stop sharing the encoding of its data
+	 * @return false if the endpoint is not writable, in which case the event
+	 * is not sent and encoded is not run
+	 */
+	public boolean offerEvent(String eventName, String eventData, Runnable encoded) {
+		if(!stopped && !suspended && !endpoint.isWritable()) return false;
+		queueEvent(eventName,eventData,encoded);
+		return true;
+	}
+	
+	/**
+	 * Send an event straight away, or add it to the batch.
+	 * @param eventName
+	 * @param eventData
+	 * @param encoded run once the event has been encoded or dropped, or null
+	 */
+	private void queueEvent(String eventName, String eventData, Runnable encoded) {
+		if(!endpoint.hasFeature(eventBatch)) {
+			submit(Collections.singletonList(eventName),Collections.singletonList(eventData),
+					encoded==null ? null : Collections.singletonList(encoded));
+			return;
+		}
+		batchLock.lock();
+		try {
+			if(stopped) {
+				if(encoded!=null) encoded.run();
+				return;
+			}
+			int bytes = eventName.length()+eventData.length();
+			if(!batchNames.isEmpty() && batchBytes+bytes>batchMaxBytes) flushBatch();
+			batchNames.add(eventName);
+			batchData.add(eventData);
+			if(encoded!=null) batchEncoded.add(encoded);
+			batchBytes+=bytes;
+			if(batchBytes>=batchMaxBytes) {
+				flushBatch();
+			} else if(lingerTimeout==null) {
+				lingerTimeout=Utils.getInstance().setTimeout(()->{
+					endpoint.awaitSendSpace();
+					batchLock.lock();
+					try {
+						lingerTimeout=null;
+						if(!stopped) flushBatch();
+					} finally {
+						batchLock.unlock();
+					}
+				}, batchLinger);
+			}
+		} finally {
+			batchLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send any events that are waiting to be batched, and any requests held
+	 * back by the window, without waiting. Useful before stopping the session
+	 * so that no events are lost.
+	 */
+	public void flush() {
+		if(stopped)return;
+		endpoint.awaitSendSpace();
+		batchLock.lock();
+		try {
+			flushBatch();
+		} finally {
+			batchLock.unlock();
+		}
+		windowLock.lock();
+		try {
+			while(!held.isEmpty() && !suspended) transmit(unhold());
+		} finally {
+			unlockWindow();
+		}
+	}
+	
+	/**
+	 * Send the events collected so far. Called while holding the batch lock.
+	 */
+	private void flushBatch() {
+		if(lingerTimeout!=null) {
+			lingerTimeout.cancel();
+			lingerTimeout=null;
+		}
+		if(batchNames.isEmpty()) return;
+		List<String> names=batchNames;
+		List<String> data=batchData;
+		List<Runnable> encoded=null;
+		batchNames=new ArrayList<>();
+		batchData=new ArrayList<>();
+		if(!batchEncoded.isEmpty()) {
+			encoded=batchEncoded;
+			batchEncoded=new ArrayList<>();
+		}
+		batchBytes=0;
+		submit(names,data,encoded);
+	}
+	
+	/**
+	 * Send events as a single request, numbered and in the window if it is
+	 * in use.
+	 * @param names
+	 * @param data
+	 * @param encoded run once the request has been encoded or dropped, or null
+	 */
+	private void submit(List<String> names, List<String> data, List<Runnable> encoded) {
+		windowLock.lock();
+		try {
+			if(stopped)return;
+			if(!endpoint.hasFeature(eventWindow)) {
+				endpoint.sendWithTimeout(makeRequest(names,data,0), ()->{
+					if(!stopped) manager.endpointTimedOut(endpoint, this);
+				}, eventTimeout, false);
+				return;
+			}
+			if(suspended && held.size()>=maxSuspendedHeld) {
+				if(!overflowed) log.warning("too many events while suspended, dropping them");
+				overflowed=true;
+				return;
+			}
+			long seq=nextSeq++;
+			Message request = makeRequest(names,data,seq);
+			if(held.isEmpty() && !suspended && seq-acked<=windowSize) {
+				transmit(request);
+			} else {
+				hold(request);
+				if(encoded!=null) heldEncoded.put(request,encoded);
+				encoded=null; // once it is sent
+			}
+		} finally {
+			unlockWindow();
+			if(encoded!=null) encoded.forEach(Runnable::run);
+		}
+	}
+	
+	/**
+	 * Make the request for some events, giving their names ids if event ids
+	 * are in use. Called while holding the window lock.
+	 * @param names
+	 * @param data
+	 * @param seq sequence number, or 0 for none
+	 * @return an event request if there is a single event, or else a batch
+	 */
+	private Message makeRequest(List<String> names, List<String> data, long seq) {
+		if(!endpoint.hasFeature(eventIds)) {
+			if(names.size()==1) return new EventRequest(names.get(0),0,data.get(0),seq);
+			return new EventBatchRequest(names,null,data,seq);
+		}
+		ArrayList<String> sendNames=new ArrayList<>(names.size());
+		long[] ids=new long[names.size()];
+		for(int i=0;i<names.size();i++) {
+			String name=names.get(i);
+			Long id=sentIds.get(name);
+			if(id!=null) {
+				ids[i]=id;
+				name=null; // the other side knows it
+			} else if(sentIds.size()<maxEventIds) {
+				ids[i]=sentIds.size()+1;
+				sentIds.put(name,ids[i]);
+			}
+			sendNames.add(name);
+		}
+		if(names.size()==1) return new EventRequest(sendNames.get(0),ids[0],data.get(0),seq);
+		return new EventBatchRequest(sendNames,ids,data,seq);
+	}
+	
+	/**
+	 * Find the name of a received event.
+	 * @param name the name that was sent, or null
+	 * @param id the id that was sent, or 0
+	 * @return the event name, or null if the id is not known
+	 */
+	private String eventName(String name, long id) {
+		if(id==0) return name;
+		if(name!=null) {
+			// ids are given in order, starting from 1
+			if(id!=receivedNames.size()+1) return null;
+			receivedNames.add(name);
+			return name;
+		}
+		if(id<1 || id>receivedNames.size()) return null;
+		return receivedNames.get((int)(id-1));
+	}
+	
+	/**
+	 * @param request an event request or batch
+	 * @return its sequence number, or 0 if there is none
+	 */
+	private static long seqOf(Message request) {
+		if(request instanceof EventBatchRequest) return ((EventBatchRequest)request).getSeq();
+		return ((EventRequest)request).getSeq();
+	}
+	
+	/**
+	 * @param request an event request or batch
+	 * @return roughly the bytes it takes, counting its event data
+	 */
+	private static long bytesOf(Message request) {
+		long bytes=0;
+		if(request instanceof EventBatchRequest) {
+			EventBatchRequest batch=(EventBatchRequest)request;
+			for(int i=0;i<batch.size();i++) bytes+=lengthOf(batch.getEventData(i));
+		} else {
+			bytes=lengthOf(((EventRequest)request).getEventData());
+		}
+		return bytes;
+	}
+	
+	private static long lengthOf(String data) {
+		return data==null ? 0 : data.length();
+	}
+	
+	/**
+	 * Hold a request back until the window opens. Called while holding the
+	 * window lock.
+	 * @param request
+	 */
+	private void hold(Message request) {
+		held.add(request);
+		heldBytes+=bytesOf(request);
+	}
+	
+	/**
+	 * Take the first request that is held back. Called while holding the
+	 * window lock.
+	 * @return the request
+	 */
+	private Message unhold() {
+		Message request=held.poll();
+		heldBytes-=bytesOf(request);
+		return request;
+	}
+	
+	/**
+	 * Release the window lock, then tell the endpoint how the bytes held back
+	 * have changed. That is done after unlocking, as the endpoint may emit a
+	 * change of writability whose handlers send more events.
+	 */
+	private void unlockWindow() {
+		long change=heldBytes-heldCounted;
+		heldCounted=heldBytes;
+		Endpoint counting=endpoint;
+		windowLock.unlock();
+		if(change!=0) counting.holdBytes(change);
+	}
+	
+	/**
+	 * Send a request that is in the window, and start the timeout if nothing
+	 * else was in flight. Called while holding the window lock.
+	 * @param request
+	 */
+	private void transmit(Message request) {
+		// kept even if it cannot be sent, the connection may be resumed
+		if(resumable) unacked.add(request);
+		boolean queued=endpoint.send(request,false);
+		if(!heldEncoded.isEmpty()) {
+			List<Runnable> encoded=heldEncoded.remove(request);
+			if(encoded!=null) encoded.forEach(Runnable::run);
+		}
+		if(!queued) return;
+		sent=seqOf(request);
+		startAckTimeout();
+	}
+	
+	/**
+	 * Start the timeout for the requests in flight, unless it is already
+	 * running. Called while holding the window lock.
+	 */
+	private void startAckTimeout() {
+		if(ackTimeout!=null) return;
+		ackTimeout=Utils.getInstance().setTimeout(()->{
+			if(!stopped && !suspended) manager.endpointTimedOut(endpoint, this);
+		}, eventTimeout);
+	}
+	
+	/**
+	 * Record that requests up to seq have been received, acknowledging them
+	 * now if enough have been received or else after a delay.
+	 * @param seq
+	 */
+	private void acknowledge(long seq) {
+		ackLock.lock();
+		try {
+			received=seq;
+			if(received-ackSent>=ackEvery) {
+				sendAck();
+			} else if(delayedAck==null) {
+				delayedAck=Utils.getInstance().setTimeout(()->{
+					ackLock.lock();
+					try {
+						delayedAck=null;
+						if(!stopped && received>ackSent) sendAck();
+					} finally {
+						ackLock.unlock();
+					}
+				}, ackDelay);
+			}
+		} finally {
+			ackLock.unlock();
+		}
+	}
+	
+	/**
+	 * Acknowledge everything received so far. Called while holding the
+	 * ack lock.
+	 */
+	private void sendAck() {
+		ackSent=received;
+		if(delayedAck!=null) {
+			delayedAck.cancel();
+			delayedAck=null;
+		}
+		if(!stopped) endpoint.send(new EventReply(received),false);
+	}
+	
+	/**
+	 * @return sequence number of the last request received
+	 */
+	public long getReceived() {
+		ackLock.lock();
+		try {
+			return received;
+		} finally {
+			ackLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true if the session can be resumed, i.e. the feature was
+	 * agreed and no events have been dropped while suspended
+	 */
+	public boolean isResumable() {
+		return resumable && !overflowed && !stopped;
+	}
+	
+	/**
+	 * Stop using the endpoint, whose connection has been lost, while keeping
+	 * everything needed to resume on another endpoint. Events emitted from
+	 * now on are held back.
+	 */
+	public void suspend() {
+		windowLock.lock();
+		try {
+			suspended=true;
+			if(ackTimeout!=null) {
+				ackTimeout.cancel();
+				ackTimeout=null;
+			}
+		} finally {
+			windowLock.unlock();
+		}
+		ackLock.lock();
+		try {
+			if(delayedAck!=null) {
+				delayedAck.cancel();
+				delayedAck=null;
+			}
+		} finally {
+			ackLock.unlock();
+		}
+	}
+	
+	/**
+	 * Carry on over a new endpoint, that must already be handling this
+	 * protocol. Requests that the other side did not receive are sent again
+	 * in order, followed by those held back while suspended.
+	 * @param endpoint
+	 * @param peerReceived sequence number of the last request the other
+	 * side received
+	 */
+	public void resume(Endpoint endpoint, long peerReceived) {
+		endpoint.awaitSendSpace();
+		windowLock.lock();
+		try {
+			this.endpoint=endpoint;
+			heldCounted=0; // the new endpoint has not been told
+			suspended=false;
+			long ack = Math.min(peerReceived,nextSeq-1);
+			if(ack>acked) acked=ack;
+			while(!unacked.isEmpty() && seqOf(unacked.peek())<=acked) unacked.poll();
+			ArrayList<Message> again=new ArrayList<>(unacked);
+			unacked.clear();
+			sent=acked;
+			for(Message request : again) transmit(request);
+			while(!held.isEmpty() && seqOf(held.peek())-acked<=windowSize) {
+				transmit(unhold());
+			}
+		} finally {
+			unlockWindow();
+		}
+		ackLock.lock();
+		try {
+			// the other side was told what has been received
+			ackSent=received;
+		} finally {
+			ackLock.unlock();
+		}
 	}
 	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		batchLock.lock();
+		try {
+			batchNames.clear();
+			batchData.clear();
+			batchEncoded.forEach(Runnable::run);
+			batchEncoded.clear();
+			if(lingerTimeout!=null) lingerTimeout.cancel();
+		} finally {
+			batchLock.unlock();
+		}
+		windowLock.lock();
+		try {
+			held.clear();
+			heldBytes=0;
+			heldEncoded.values().forEach((encoded)->{encoded.forEach(Runnable::run);});
+			heldEncoded.clear();
+			unacked.clear();
+			if(ackTimeout!=null) ackTimeout.cancel();
+		} finally {
+			unlockWindow();
+		}
+		ackLock.lock();
+		try {
+			if(delayedAck!=null) delayedAck.cancel();
+		} finally {
+			ackLock.unlock();
+		}
 	}
 
 	@Override
@@ -84,22 +759,62 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		if(stopped)return;
+		EventReply eventReply = (EventReply)msg;
+		if(!eventReply.hasAck()) return; // its timeout has been cancelled already
+		windowLock.lock();
+		try {
+			long ack = Math.min(eventReply.getAck(),sent);
+			if(ack<=acked) return;
+			acked=ack;
+			while(!unacked.isEmpty() && seqOf(unacked.peek())<=acked) unacked.poll();
+			if(ackTimeout!=null) {
+				ackTimeout.cancel();
+				ackTimeout=null;
+			}
+			// the window has opened
+			while(!held.isEmpty() && seqOf(held.peek())-acked<=windowSize) {
+				transmit(unhold());
+			}
+			if(sent>acked) startAckTimeout();
+		} finally {
+			unlockWindow();
+		}
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		long seq = seqOf(msg);
+		if(seq==0) endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		else if(seq<=getReceived()) return; // sent again after a resume
+		if(msg instanceof EventBatchRequest) {
+			EventBatchRequest batch = (EventBatchRequest)msg;
+			for(int i=0;i<batch.size();i++) {
+				String eventName = eventName(batch.getEventName(i),batch.getEventId(i));
+				if(eventName==null) {
+					manager.protocolViolation(endpoint,this);
+					return;
+				}
+				endpoint.localEmit(eventName,batch.getEventData(i));
+			}
+		} else {
+			EventRequest eventRequest = (EventRequest)msg;
+			String eventName = eventName(eventRequest.getEventName(),eventRequest.getEventId());
+			if(eventName==null) {
+				manager.protocolViolation(endpoint,this);
+				return;
+			}
+			endpoint.localEmit(eventName,eventRequest.getEventData());
+		}
+		// acknowledged once handled, so a slow receiver slows the sender
+		if(seq!=0) acknowledge(seq);
 	}
 
 	@Override
 	public void sendReply(Message msg)  {
-		
-		
+		if(stopped)return;
+		endpoint.send(msg);
 	}
 	
 	@Override
@@ -10,9 +10,33 @@ public class EventReply extends Message {
 	public EventReply() {
 		super(name, EventProtocol.protocolName, Message.Type.Reply);
 	}
+	
+	/**
+	 * A cumulative acknowledgement, sent when the event window is in use.
+	 * @param ack sequence number of the last event received
+	 */
+	public EventReply(long ack) {
+		this();
+		doc.append("ack", ack);
+	}
 
 	public EventReply(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("ack")) Message.validateLongType("ack", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return true if this is a cumulative acknowledgement
+	 */
+	public boolean hasAck() {
+		return doc.containsKey("ack");
+	}
+	
+	/**
+	 * @return the sequence number acknowledged, or 0 if none
+	 */
+	public long getAck() {
+		return hasAck() ? doc.getLong("ack") : 0;
+	}
 }
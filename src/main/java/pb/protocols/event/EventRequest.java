@@ -8,23 +8,78 @@ public class EventRequest extends Message {
 	static final public String name = "EventRequest";
 	
 	public EventRequest(String eventName, String eventData) {
+		this(eventName,0,eventData,0);
+	}
+	
+	/**
+	 * An event with a sequence number, sent when the event window is in use.
+	 * @param eventName
+	 * @param eventData
+	 * @param seq sequence number of the request, starting from 1
+	 */
+	public EventRequest(String eventName, String eventData, long seq) {
+		this(eventName,0,eventData,seq);
+	}
+	
+	/**
+	 * An event that may use an event id in place of its name, when the
+	 * {@link EventProtocol#eventIds} feature is in use. Sending both the id
+	 * and the name tells the other side the name of the id.
+	 * @param eventName the name, or null if the id is already known
+	 * @param eventId the id, or 0 for none
+	 * @param eventData
+	 * @param seq sequence number, or 0 for none
+	 */
+	public EventRequest(String eventName, long eventId, String eventData, long seq) {
 		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
+		if(eventName!=null) doc.append("eventName", eventName);
+		if(eventId!=0) doc.append("eventId", eventId);
 		doc.append("eventData", eventData);
+		if(seq!=0) doc.append("seq", seq);
 	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
-		Message.validateStringType("eventName", doc);
+		if(doc.containsKey("eventId")) {
+			Message.validateLongType("eventId", doc);
+			if(doc.containsKey("eventName")) Message.validateStringType("eventName", doc);
+		} else {
+			Message.validateStringType("eventName", doc);
+		}
 		Message.validateStringType("eventData", doc);
+		if(doc.containsKey("seq")) Message.validateLongType("seq", doc);
 		this.doc=doc;
 	}
 	
+	/**
+	 * @return the event name, or null if only its id was sent
+	 */
 	public String getEventName() {
 		return doc.getString("eventName");
 	}
 	
+	/**
+	 * @return the event id, or 0 if there is none
+	 */
+	public long getEventId() {
+		return doc.containsKey("eventId") ? doc.getLong("eventId") : 0;
+	}
+	
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
+	
+	/**
+	 * @return true if the event has a sequence number
+	 */
+	public boolean hasSeq() {
+		return doc.containsKey("seq");
+	}
+	
+	/**
+	 * @return the sequence number, or 0 if there is none
+	 */
+	public long getSeq() {
+		return hasSeq() ? doc.getLong("seq") : 0;
+	}
 }
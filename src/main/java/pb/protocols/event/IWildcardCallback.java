@@ -0,0 +1,31 @@
+package pb.protocols.event;
+
+/**
+ * Callback for all events emitted on an eventable object, registered with
+ * {@link pb.utils.Eventable#onAny(IWildcardCallback)}. Unlike a "*" callback
+ * it is given the event name and the emitted arguments as they are, without
+ * copying them into a new array.
+ * @author aaron
+ *
+ */
+@FunctionalInterface
+public interface IWildcardCallback {
+	/**
+	 * Handle an event.
+	 * @param eventName
+	 * @param args the arguments that were emitted, must not be modified
+	 */
+	public void callback(String eventName, Object[] args);
+
+	/**
+	 * Handle an event with a single String argument, called instead of
+	 * {@link #callback(String, Object[])} when such an event is emitted with
+	 * {@link pb.utils.Eventable#emit(String, String)}. Override it to avoid
+	 * allocating the array.
+	 * @param eventName
+	 * @param eventData
+	 */
+	public default void callback(String eventName, String eventData) {
+		callback(eventName, new Object[] {eventData});
+	}
+}
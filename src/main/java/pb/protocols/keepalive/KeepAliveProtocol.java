@@ -1,6 +1,5 @@
 package pb.protocols.keepalive;
 
-import java.time.Instant;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -13,20 +12,32 @@ import pb.protocols.IRequestReplyProtocol;
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
- * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
- * and signal its manager using
- * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
- * when a timeout occurs.
- * 
+ * KeepAlive request to the server when it has not heard from the server for
+ * a while. Neither side keeps timeouts of its own: the manager's
+ * {@link KeepAliveSweeper} checks all of its endpoints every second.
+ * The server must send a KeepAlive response to the client upon receiving the
+ * request. Any message received counts as a sign that the other side is
+ * alive, not just keep alive messages, so a busy connection needs no
+ * requests at all. If the client hears nothing within the probe timeout after
+ * sending a request it will assume the server is dead and signal its manager
+ * using {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If
+ * the server hears nothing from the client for {@link #keepAliveTimeout}
+ * ms it will assume the client is dead and signal its manager. Upon
+ * initialisation, the client should send the KeepAlive request immediately.
+ * The protocol stops when a timeout occurs.
+ * <br/>
+ * The client measures the round trip time of each request and its reply,
+ * and keeps a smoothed estimate of it and of its variation in the same way
+ * as TCP does. The probe timeout is the estimate plus four times the
+ * variation, within {@link #keepAliveMinTimeout} and half of
+ * {@link #keepAliveTimeout}, so that a dead server is found quickly on a
+ * fast link; and requests are sent often enough that a request and its
+ * timeout always fit within the server's {@link #keepAliveTimeout}.
+ * <br/>
+ * A server that is older than the {@link #keepAliveTraffic} feature only
+ * counts requests, so the client still sends one every
+ * {@link #keepAliveRequestInterval} ms unless that feature was agreed.
+ *
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
  * @see {@link pb.protocols.Message}
@@ -40,14 +51,22 @@ import pb.protocols.IRequestReplyProtocol;
 public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol {
 	@SuppressWarnings("unused")
 	private static Logger log = Logger.getLogger(KeepAliveProtocol.class.getName());
-
+	
 	/**
-	 * Name of this protocol. 
+	 * Name of this protocol.
 	 */
 	public static final String protocolName="KeepAliveProtocol";
 	
 	/**
-	 * Default keep alive request interval
+	 * Feature name, negotiated when the session starts, for counting any
+	 * message as a sign of life, so that the client need not send requests
+	 * while it is sending other messages.
+	 */
+	public static final String keepAliveTraffic = "keepAliveTraffic";
+	
+	/**
+	 * Default keep alive request interval, the longest the client waits
+	 * without hearing from the server before sending a request
 	 */
 	private int keepAliveRequestInterval = 20000;
 	
@@ -56,29 +75,48 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	private int keepAliveTimeout = 40000;
 	
+	/**
+	 * Shortest time the client waits for a sign of life after a request
+	 */
+	private int keepAliveMinTimeout = 5000;
+	
 	// Use of volatile is because the timer thread is different to the endpoint thread
-	// and they make use of the same flags/variables.
+	// and they make use of the same flags/variables. The probe state is only
+	// changed by the sweeper, which never sweeps twice at the same time, and the
+	// round trip estimate only by the endpoint thread.
+	
+	/**
+	 * Whether a request has been sent and nothing heard since.
+	 */
+	private volatile boolean probing=false;
 	
 	/**
-	 * Time that a request was last sent.
+	 * {@link System#nanoTime()} when the last request was sent.
 	 */
-	private volatile long timeReplySeen;
+	private volatile long timeProbeSent;
 	
 	/**
-	 * Time that a request was last seen.
+	 * Number of requests sent, and of replies received. Replies come back
+	 * in the order the requests were sent.
 	 */
-	private volatile long timeRequestSeen;
+	private volatile long probesSent=0;
+	private volatile long repliesReceived=0;
 	
+	/**
+	 * Smoothed round trip time and its variation in ns, 0 until measured.
+	 */
+	private volatile long srtt=0;
+	private volatile long rttvar=0;
 	
 	/**
-	 * Set to true to avoid any further timeouts. 
+	 * Set to true to avoid any further timeouts.
 	 */
 	private volatile boolean stopped=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Whether this end sends the requests.
 	 */
-	private volatile boolean timeout=false; 
+	private volatile boolean client=false;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -96,7 +134,7 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public String getProtocolName() {
 		return protocolName;
 	}
-
+	
 	/**
 	 * Just set a flag to avoid any further timeout callbacks.
 	 */
@@ -105,119 +143,185 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 		stopped=true;
 	}
 	
+	/**
+	 * @return the smoothed round trip time in ms, or 0 if it has not been
+	 * measured yet
+	 */
+	public double getSmoothedRtt() {
+		return srtt/1e6;
+	}
+	
+	/**
+	 * @return how long the client waits for a sign of life after a
+	 * request, in ns
+	 */
+	private long probeTimeout() {
+		if(srtt==0) return ms(keepAliveTimeout-keepAliveRequestInterval);
+		long rto = srtt+4*rttvar;
+		return Math.max(ms(keepAliveMinTimeout), Math.min(rto, ms(keepAliveTimeout)/2));
+	}
+	
+	/**
+	 * @return how long the client goes without hearing from the server
+	 * before sending a request, in ns
+	 */
+	private long probeInterval() {
+		return Math.min(ms(keepAliveRequestInterval), ms(keepAliveTimeout)-probeTimeout());
+	}
+	
+	private static long ms(long ms) {
+		return ms*1000000L;
+	}
+	
+	/**
+	 * Stop, and tell the manager that the other endpoint timed out. That is
+	 * done on the timer's executor rather than by the sweeper, as closing an
+	 * endpoint may take a while.
+	 */
+	private void timedOut() {
+		stopProtocol();
+		try {
+			Utils.getInstance().setTimeout(()->{
+				manager.endpointTimedOut(endpoint,this);
+			}, 0);
+		} catch (IllegalStateException e) {
+			manager.endpointTimedOut(endpoint,this);
+		}
+	}
+	
+	/**
+	 * Called by the sweeper about every {@link KeepAliveSweeper#tick} ms,
+	 * to check for a timeout and send a request if one is due.
+	 * @param now {@link System#nanoTime()} of the sweep
+	 * @return false once the protocol has stopped
+	 */
+	boolean sweep(long now) {
+		if(stopped) return false;
+		if(client) checkServerTimeout(now);
+		else checkClientTimeout(now);
+		return !stopped;
+	}
+	
 	/*
 	 * Interface methods
 	 */
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
-	 * then timeout. Keep doing this until cancelled.
+	 * have the manager's sweeper check that something has been heard from
+	 * the client in the last {@link #keepAliveTimeout} ms, until cancelled.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
+		client=false;
+		manager.getKeepAliveSweeper().add(this);
 	}
 	
 	/**
-	 * callback to check for client timeout
+	 * check for client timeout
+	 * @param now
 	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
+	private void checkClientTimeout(long now) {
+		if(now-endpoint.getTimeLastReceived() >= ms(keepAliveTimeout)) {
 			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
+			timedOut();
 		}
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
-	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * send a keep alive immediately and then have the manager's sweeper
+	 * check for signs of life until cancelled.
 	 */
 	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
-		// send a request straight away
-		sendAnotherRequest();	
+		client=true;
+		sendAnotherRequest(System.nanoTime());
+		manager.getKeepAliveSweeper().add(this);
 	}
 	
 	/**
-	 * callback to send new request
+	 * send new request
+	 * @param now
 	 */
-	public void sendAnotherRequest() {
-		if(stopped)return;
+	private void sendAnotherRequest(long now) {
+		// counted first, so that a late reply to the previous request is
+		// never timed against this one
+		probesSent++;
+		timeProbeSent = now;
+		probing=true;
 		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * check for server timeout, and send a request if one is due
+	 * @param now
 	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
+	private void checkServerTimeout(long now) {
+		long received = endpoint.getTimeLastReceived();
+		if(probing) {
+			if(received-timeProbeSent >= 0) {
+				probing=false;
+			} else if(now-timeProbeSent >= probeTimeout()) {
 				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
+				timedOut();
+				return;
+			} else {
+				return;
+			}
 		}
+		long interval = probeInterval();
+		// a request is due when the server has been quiet, or when the
+		// server may not have heard from us
+		long due = received+interval;
+		if(endpoint.hasFeature(keepAliveTraffic)) {
+			due = Math.min(due, endpoint.getTimeLastSent()+interval);
+		} else {
+			due = Math.min(due, timeProbeSent+ms(keepAliveRequestInterval));
+		}
+		if(now-due >= 0) sendAnotherRequest(now);
 	}
-
+	
 	/**
-	 * Send a keep alive request.
+	 * Send a keep alive request, without waiting for space in the outbound
+	 * queue as the sweeper must never wait on one endpoint.
 	 * @param msg
 	 */
 	@Override
 	public void sendRequest(Message msg) {
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		endpoint.send(keepAliveRequest);
+		endpoint.send(keepAliveRequest,false);
 	}
-
+	
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * If we receive the reply to the last request sent, update the round
+	 * trip estimate.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
+		long rtt = System.nanoTime()-timeProbeSent;
+		if(++repliesReceived!=probesSent || rtt<=0) return;
+		if(srtt==0) {
+			srtt=rtt;
+			rttvar=rtt/2;
+		} else {
+			rttvar+=(Math.abs(srtt-rtt)-rttvar)/4;
+			srtt+=(rtt-srtt)/8;
+		}
 	}
-
+	
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request, reply to it.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
 		sendReply(new KeepAliveReply());
 	}
-
+	
 	/**
 	 * Simply send a reply to a keep alive request.
 	 * @param msg
@@ -227,6 +331,6 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
 		endpoint.send(keepAliveResponse);
 	}
-	
-	
+
+
 }
@@ -0,0 +1,118 @@
+package pb.protocols.keepalive;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * Checks the keep alive protocols of all of the endpoints of a manager on a
+ * single recurring timeout, rather than each protocol keeping timeouts of its
+ * own, so that the work for the timer stays the same however many
+ * connections there are. Every {@link #tick} ms the sweeper walks a compact
+ * array of the protocols that have been started, each of which looks at when
+ * its endpoint last heard from, or sent to, the other endpoint, and sends a
+ * request or times out as needed. Protocols that have stopped are dropped
+ * from the array after it has been walked, and the timeout is only kept
+ * going while the array is not empty.
+ *
+ * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * @see {@link pb.managers.Manager#getKeepAliveSweeper()}
+ * @author aaron
+ *
+ */
+public class KeepAliveSweeper {
+	private static Logger log = Logger.getLogger(KeepAliveSweeper.class.getName());
+
+	/**
+	 * Time between sweeps in ms.
+	 */
+	public static final int tick = 1000;
+
+	/**
+	 * The protocols being checked, in the first {@link #size} places.
+	 */
+	private KeepAliveProtocol[] protocols = new KeepAliveProtocol[16];
+	private int size = 0;
+
+	/**
+	 * Whether the next sweep has been scheduled.
+	 */
+	private boolean scheduled = false;
+
+	/**
+	 * Start checking a protocol, until it stops.
+	 * @param protocol
+	 */
+	public synchronized void add(KeepAliveProtocol protocol) {
+		if(size==protocols.length) protocols = Arrays.copyOf(protocols, size*2);
+		protocols[size++] = protocol;
+		if(!scheduled) schedule();
+	}
+
+	/**
+	 * @return the number of protocols being checked
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Schedule the next sweep, called while holding the lock.
+	 */
+	private void schedule() {
+		try {
+			Utils.getInstance().setTimeout(()->{
+				sweep();
+			}, tick);
+			scheduled = true;
+		} catch (IllegalStateException e) {
+			log.warning("keep alive timer has been cleaned up");
+			scheduled = false;
+		}
+	}
+
+	/**
+	 * Check every protocol once, removing those that have stopped. The
+	 * protocols are checked without holding the lock, as a check may send a
+	 * request or time the endpoint out, which runs callbacks of the
+	 * application, and that must not hold up the others or protocols being
+	 * added. Only sweeps take protocols out, and they do not overlap, so the
+	 * protocols that were checked are still the first in the array after it.
+	 */
+	private void sweep() {
+		KeepAliveProtocol[] checking;
+		synchronized(this) {
+			checking = Arrays.copyOf(protocols, size);
+		}
+		long now = System.nanoTime();
+		boolean[] stopped = new boolean[checking.length];
+		int stops = 0;
+		for(int i=0;i<checking.length;i++) {
+			if(!checking[i].sweep(now)) {
+				stopped[i] = true;
+				stops++;
+			}
+		}
+		synchronized(this) {
+			if(stops>0) {
+				// keep the order, those added meanwhile are after the ones checked
+				int kept = 0;
+				for(int i=0;i<size;i++) {
+					if(i<stopped.length && stopped[i]) continue;
+					protocols[kept++] = protocols[i];
+				}
+				Arrays.fill(protocols, kept, size, null);
+				size = kept;
+			}
+			if(size<protocols.length/4 && protocols.length>16) {
+				protocols = Arrays.copyOf(protocols, Math.max(16, protocols.length/2));
+			}
+			if(size>0) {
+				schedule();
+			} else {
+				scheduled = false;
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package pb.protocols.session;
 
+import java.util.Set;
+
 import pb.managers.endpoint.Endpoint;
 
 public interface ISessionProtocolHandler {
@@ -14,4 +16,34 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The other endpoint asked to resume a session whose connection was lost.
+	 * If it can be resumed the session should be moved to the endpoint, but
+	 * no events sent on it until {@link #sessionResumed(Endpoint, long)}.
+	 * @param endpoint the endpoint of the new connection
+	 * @param resumeToken the token given when the session started
+	 * @param features the features agreed for the new connection
+	 * @return sequence number of the last event received on the session,
+	 * or -1 if it cannot be resumed
+	 */
+	public long sessionResumeRequested(Endpoint endpoint, String resumeToken, Set<String> features);
+	
+	/**
+	 * The session has been resumed on a new connection.
+	 * @param endpoint the endpoint of the new connection
+	 * @param received sequence number of the last event that the other
+	 * endpoint received on the session
+	 */
+	public void sessionResumed(Endpoint endpoint, long received);
+	
+	/**
+	 * The server would not start the session, and the connection should
+	 * be closed.
+	 * @param endpoint
+	 * @param reason why the session was refused
+	 * @param retryAfter time in ms that the client should wait before
+	 * trying again
+	 */
+	public void sessionRefused(Endpoint endpoint, String reason, long retryAfter);
 }
@@ -1,11 +1,14 @@
 package pb.protocols.session;
 
+import java.security.SecureRandom;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +21,24 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The session start request carries the optional features that the client
+ * supports and the reply carries those the server also supports, which are
+ * then recorded on the endpoint at both ends. If binary framing was agreed,
+ * each end switches to it after the start request/reply exchange.
+ * <br/>
+ * If the {@link #sessionResume} feature is agreed, the server gives the
+ * client a token with the start reply. When the connection is lost the
+ * client can connect again and send the token, with the sequence number of
+ * the last event it received, in its start request; if the server still has
+ * the session, its reply says so along with the last event it received, and
+ * each side sends the events that the other has not received. The session
+ * then carries on without starting again.
+ * <br/>
+ * A server that is overloaded can refuse to start the session, see
+ * {@link #refuseSession(String, long)}, in which case it replies to the
+ * start request with a {@link SessionStartRefused} that tells the client
+ * when to try again, and then closes the connection.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -38,6 +59,18 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public static final String protocolName="SessionProtocol";
 	
+	/**
+	 * Feature name, negotiated when the session starts, for resuming the
+	 * session over a new connection when the connection is lost. It needs
+	 * the {@link EventProtocol#eventWindow} feature too.
+	 */
+	public static final String sessionResume = "sessionResume";
+	
+	/**
+	 * For making resume tokens that cannot be guessed.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	
 	/**
 	 * Default request timeout
 	 */
@@ -57,6 +90,29 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * Token for resuming the session, or null if it cannot be resumed.
+	 */
+	private volatile String resumeToken=null;
+	
+	/**
+	 * Sequence number of the last event received on the session that the
+	 * client asks to resume, when there is a resume token.
+	 */
+	private long resumeReceived=0;
+	
+	/**
+	 * Why the session will be refused, or null if it will not be, and the
+	 * time in ms that the client is asked to wait before trying again.
+	 */
+	private volatile String refuseReason=null;
+	private volatile long refuseRetryAfter=0;
+	
+	/**
+	 * Time a server waits for the start request of a session it will refuse.
+	 */
+	private int refuseTimeout = 5000;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -86,6 +142,50 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		stopped=true;
 	}
 	
+	/**
+	 * @return the token for resuming the session, or null if it cannot be
+	 * resumed
+	 */
+	public String getResumeToken() {
+		return resumeToken;
+	}
+	
+	/**
+	 * Ask to resume a session whose connection was lost, rather than start
+	 * a new one, when started as a client.
+	 * @param resumeToken the token given for the session
+	 * @param received sequence number of the last event received on the session
+	 */
+	public void resumeSession(String resumeToken, long received) {
+		this.resumeToken=resumeToken;
+		this.resumeReceived=received;
+	}
+	
+	/**
+	 * Refuse the session when the start request is received, rather than
+	 * start it, when started as a server.
+	 * @param reason why the session is refused
+	 * @param retryAfter time in ms that the client should wait before
+	 * trying again
+	 */
+	public void refuseSession(String reason, long retryAfter) {
+		this.refuseRetryAfter=retryAfter;
+		this.refuseReason=reason;
+	}
+	
+	/**
+	 * @return a new token for resuming a session
+	 */
+	private static String newResumeToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(32);
+		for(byte b : bytes) {
+			sb.append(Character.forDigit((b>>4)&0xF,16)).append(Character.forDigit(b&0xF,16));
+		}
+		return sb.toString();
+	}
+	
 	/*
 	 * Interface methods
 	 */
@@ -98,7 +198,11 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		if(resumeToken!=null) {
+			sendRequest(new SessionStartRequest(manager.getFeatures(),resumeToken,resumeReceived));
+		} else {
+			sendRequest(new SessionStartRequest(manager.getFeatures()));
+		}
 	}
 
 	/**
@@ -111,16 +215,26 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				// we timed out
 				manager.endpointTimedOut(endpoint, this);
 			}
-		}, sessionTimeout);
+		}, refuseReason!=null ? refuseTimeout : sessionTimeout);
 	}
 	
 	/**
 	 * Generic stop session call, for either client or server.
 	 */
 	public void stopSession() {
+		flushEvents();
 		sendRequest(new SessionStopRequest());
 	}
 	
+	/**
+	 * Send any events that are still waiting to be batched, so that they
+	 * reach the other side before the session stops.
+	 */
+	private void flushEvents() {
+		Protocol protocol = endpoint.getProtocol(EventProtocol.protocolName);
+		if(protocol instanceof EventProtocol) ((EventProtocol)protocol).flush();
+	}
+	
 	/**
 	 * Just send a request, nothing special.
 	 * @param msg
@@ -150,7 +264,15 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			SessionStartReply reply = (SessionStartReply)msg;
+			agreeFeatures(reply.getFeatures());
+			boolean resumed = resumeToken!=null && reply.isResumed();
+			resumeToken = reply.getFeatures().contains(sessionResume) ? reply.getResumeToken() : null;
+			if(resumed) {
+				((ISessionProtocolHandler)manager).sessionResumed(endpoint,reply.getReceived());
+			} else {
+				((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			}
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
 				// error, received a second reply?
@@ -159,6 +281,15 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			}
 			protocolRunning=false;
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
+		} else if(msg instanceof SessionStartRefused) {
+			if(protocolRunning) {
+				// error, the session has already started
+				manager.protocolViolation(endpoint,this);
+				return;
+			}
+			stopped=true;
+			SessionStartRefused refused = (SessionStartRefused)msg;
+			((ISessionProtocolHandler)manager).sessionRefused(endpoint,refused.getReason(),refused.getRetryAfter());
 		}
 	}
 
@@ -177,8 +308,35 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
+			if(refuseReason!=null) {
+				stopped=true;
+				endpoint.sendAndCancelTimeout(new SessionStartRefused(refuseReason,refuseRetryAfter),msg);
+				((ISessionProtocolHandler)manager).sessionRefused(endpoint,refuseReason,refuseRetryAfter);
+				return;
+			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			SessionStartRequest request = (SessionStartRequest)msg;
+			Set<String> features = request.getFeatures();
+			features.retainAll(manager.getFeatures());
+			if(!features.contains(EventProtocol.eventWindow)) features.remove(sessionResume);
+			if(features.contains(sessionResume) && request.getResumeToken()!=null) {
+				long received = ((ISessionProtocolHandler)manager)
+						.sessionResumeRequested(endpoint,request.getResumeToken(),features);
+				if(received>=0) {
+					resumeToken=request.getResumeToken();
+					endpoint.sendAndCancelTimeout(new SessionStartReply(features,resumeToken,received),msg);
+					agreeFeatures(features);
+					((ISessionProtocolHandler)manager).sessionResumed(endpoint,request.getReceived());
+					return;
+				}
+			}
+			if(features.contains(sessionResume)) {
+				resumeToken=newResumeToken();
+				endpoint.sendAndCancelTimeout(new SessionStartReply(features,resumeToken),msg);
+			} else {
+				endpoint.sendAndCancelTimeout(new SessionStartReply(features),msg);
+			}
+			agreeFeatures(features);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -187,12 +345,25 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
+			flushEvents();
 			endpoint.sendAndCancelTimeout(new SessionStopReply(),msg);
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 		
 	}
 
+	/**
+	 * Record the agreed features on the endpoint and switch framing if
+	 * that was agreed.
+	 * @param features
+	 */
+	private void agreeFeatures(Set<String> features) {
+		endpoint.setFeatures(features);
+		if(features.contains(Endpoint.binaryFraming)) {
+			endpoint.upgradeFraming();
+		}
+	}
+	
 	/**
 	 * Just send a reply, nothing special to do.
 	 * @param msg
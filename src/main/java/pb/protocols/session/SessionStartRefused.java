@@ -0,0 +1,56 @@
+package pb.protocols.session;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent in response to a start request when the server will not
+ * start a session, e.g. because it is overloaded, telling the client when
+ * to try again. The connection is closed after it is sent.
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @author aaron
+ *
+ */
+public class SessionStartRefused extends Message {
+	static final public String name = "SessionStartRefused";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param reason why the session was refused
+	 * @param retryAfter time in ms to wait before trying again
+	 */
+	public SessionStartRefused(String reason, long retryAfter) {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		doc.append("reason", reason);
+		doc.append("retryAfter", retryAfter);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessag if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public SessionStartRefused(Document doc) throws InvalidMessage {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		validateStringType("reason",doc);
+		validateLongType("retryAfter",doc);
+		this.doc=doc;
+	}
+	
+	/**
+	 * @return why the session was refused
+	 */
+	public String getReason() {
+		return doc.getString("reason");
+	}
+	
+	/**
+	 * @return time in ms to wait before trying again
+	 */
+	public long getRetryAfter() {
+		return doc.getLong("retryAfter");
+	}
+}
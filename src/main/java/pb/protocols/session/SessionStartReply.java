@@ -1,5 +1,10 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -21,6 +26,41 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser with the optional features agreed by the server. Peers that
+	 * do not know about features ignore the extra parameter.
+	 * @param features
+	 */
+	public SessionStartReply(Collection<String> features) {
+		this();
+		doc.append("features", new ArrayList<String>(features));
+	}
+	
+	/**
+	 * Initialiser with the agreed features and the token that the client can
+	 * use to resume the session, when the {@link SessionProtocol#sessionResume}
+	 * feature was agreed.
+	 * @param features
+	 * @param resumeToken
+	 */
+	public SessionStartReply(Collection<String> features, String resumeToken) {
+		this(features);
+		doc.append("resumeToken", resumeToken);
+	}
+	
+	/**
+	 * Initialiser for a reply that resumes the session the client asked for.
+	 * @param features
+	 * @param resumeToken
+	 * @param received sequence number of the last event the server received
+	 * on the session
+	 */
+	public SessionStartReply(Collection<String> features, String resumeToken, long received) {
+		this(features,resumeToken);
+		doc.append("resumed", true);
+		doc.append("received", received);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -32,4 +72,42 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the features agreed by the server, empty if none were given
+	 */
+	public Set<String> getFeatures() {
+		Set<String> features = new HashSet<>();
+		Object list = doc.get("features");
+		if(list instanceof ArrayList) {
+			for(Object feature : (ArrayList<?>) list) {
+				if(feature instanceof String) features.add((String) feature);
+			}
+		}
+		return features;
+	}
+	
+	/**
+	 * @return the token for resuming the session, or null if none was given
+	 */
+	public String getResumeToken() {
+		Object token = doc.get("resumeToken");
+		return token instanceof String ? (String) token : null;
+	}
+	
+	/**
+	 * @return true if the session the client asked for was resumed
+	 */
+	public boolean isResumed() {
+		return Boolean.TRUE.equals(doc.get("resumed"));
+	}
+	
+	/**
+	 * @return sequence number of the last event the server received on the
+	 * resumed session, or 0 if none was given
+	 */
+	public long getReceived() {
+		Object received = doc.get("received");
+		return received instanceof Long ? (Long) received : 0;
+	}
 }
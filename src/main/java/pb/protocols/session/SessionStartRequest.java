@@ -1,5 +1,10 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -21,6 +26,29 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser with the optional features offered by the client. Peers that
+	 * do not know about features ignore the extra parameter.
+	 * @param features
+	 */
+	public SessionStartRequest(Collection<String> features) {
+		this();
+		doc.append("features", new ArrayList<String>(features));
+	}
+	
+	/**
+	 * Initialiser that also asks to resume a session whose connection was
+	 * lost, when the {@link SessionProtocol#sessionResume} feature is offered.
+	 * @param features
+	 * @param resumeToken the token the server gave for the session
+	 * @param received sequence number of the last event received on the session
+	 */
+	public SessionStartRequest(Collection<String> features, String resumeToken, long received) {
+		this(features);
+		doc.append("resumeToken", resumeToken);
+		doc.append("received", received);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -32,4 +60,35 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the features offered by the client, empty if none were given
+	 */
+	public Set<String> getFeatures() {
+		Set<String> features = new HashSet<>();
+		Object list = doc.get("features");
+		if(list instanceof ArrayList) {
+			for(Object feature : (ArrayList<?>) list) {
+				if(feature instanceof String) features.add((String) feature);
+			}
+		}
+		return features;
+	}
+	
+	/**
+	 * @return the token of the session to resume, or null if none was given
+	 */
+	public String getResumeToken() {
+		Object token = doc.get("resumeToken");
+		return token instanceof String ? (String) token : null;
+	}
+	
+	/**
+	 * @return sequence number of the last event the client received on the
+	 * session to resume, or 0 if none was given
+	 */
+	public long getReceived() {
+		Object received = doc.get("received");
+		return received instanceof Long ? (Long) received : 0;
+	}
 }
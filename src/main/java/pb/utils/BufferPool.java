@@ -0,0 +1,115 @@
+package pb.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A singleton pool of byte arrays, used to read frames without allocating
+ * a new array for each one. Arrays come in power of two size classes, and
+ * each size class only keeps a bounded number of bytes so that a burst of
+ * large frames does not stay resident. It must always be accessed statically
+ * as BufferPool.getInstance()...
+ *
+ * @author aaron
+ *
+ */
+public class BufferPool {
+	private static BufferPool bufferPool;
+
+	/**
+	 * Smallest size class, as a power of two.
+	 */
+	private static final int minShift = 10;
+
+	/**
+	 * Largest size class, as a power of two. Larger arrays are not pooled,
+	 * so that a rare large frame does not leave its array resident.
+	 */
+	private static final int maxShift = 20;
+
+	/**
+	 * Upper bound on the bytes kept in any one size class.
+	 */
+	private static final int bytesPerClass = 4*1024*1024;
+
+	/**
+	 * Free arrays for each size class.
+	 */
+	private final Queue<byte[]>[] free;
+
+	/**
+	 * Number of free arrays in each size class.
+	 */
+	private final AtomicInteger[] counts;
+
+	@SuppressWarnings("unchecked")
+	public BufferPool() {
+		free = (Queue<byte[]>[]) new Queue<?>[maxShift+1];
+		counts = new AtomicInteger[maxShift+1];
+		for(int i=minShift;i<=maxShift;i++) {
+			free[i]=new ConcurrentLinkedQueue<>();
+			counts[i]=new AtomicInteger();
+		}
+	}
+
+	public static synchronized BufferPool getInstance() {
+		if(bufferPool==null) bufferPool=new BufferPool();
+		return bufferPool;
+	}
+
+	/**
+	 * Get an array of at least the given size. It may be larger.
+	 * @param size the number of bytes needed
+	 * @return an array, that should be given back with {@link #release(byte[])}
+	 */
+	public byte[] acquire(int size) {
+		int shift = shiftFor(size);
+		if(shift>maxShift) return new byte[size];
+		byte[] buffer = free[shift].poll();
+		if(buffer==null) return new byte[1<<shift];
+		counts[shift].decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Give an array back to the pool. Arrays that did not come from the
+	 * pool are ignored.
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		int shift = shiftFor(buffer.length);
+		if(shift>maxShift || buffer.length!=1<<shift) return;
+		if(counts[shift].incrementAndGet()*(long)buffer.length>bytesPerClass) {
+			counts[shift].decrementAndGet();
+			return;
+		}
+		free[shift].add(buffer);
+	}
+
+	/**
+	 * Swap an array for a larger one, keeping the bytes used so far. The
+	 * new array is at least twice as large, so that growing an array a
+	 * little at a time does not copy it many times.
+	 * @param buffer an array from {@link #acquire(int)}, which is released
+	 * @param used the number of bytes at the start of the array to keep
+	 * @param size the number of bytes needed
+	 * @return the larger array, that should be given back with
+	 * {@link #release(byte[])}
+	 */
+	public byte[] grow(byte[] buffer, int used, int size) {
+		byte[] larger = acquire(Math.max(size, buffer.length*2));
+		System.arraycopy(buffer, 0, larger, 0, used);
+		release(buffer);
+		return larger;
+	}
+
+	/**
+	 * @param size
+	 * @return the size class for the size
+	 */
+	private static int shiftFor(int size) {
+		if(size<=1<<minShift) return minShift;
+		return 32-Integer.numberOfLeadingZeros(size-1);
+	}
+}
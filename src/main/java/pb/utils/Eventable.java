@@ -1,16 +1,40 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
+import pb.protocols.event.IWildcardCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. Callbacks can be added with {@link #on} and
+ * removed with {@link #off}.
+ * <br/>
+ * The callbacks for each event are kept in an array that is copied whenever
+ * a callback is added or removed, so emitting takes no lock: events emitted
+ * from different threads are delivered in parallel, and a slow callback only
+ * holds up the thread that emitted its event. A callback that is added or
+ * removed while an event is being emitted may or may not receive that event.
+ * <br/>
+ * Callbacks that want all events should be added with {@link #onAny}, they
+ * are given the emitted arguments without any copying; and events with a
+ * single String argument, the common case, are emitted without a varargs
+ * array for them. Callbacks added for the special event name "*" still work
+ * but cost a copy of the arguments for each event.
+ * <br/>
+ * Callbacks normally run on the thread that emits the event, e.g. the
+ * thread reading from an endpoint's socket. A callback that may be slow can
+ * instead be added with a {@link KeyedExecutor} and a key, so that it runs
+ * on the executor's threads, in order with the other callbacks that have
+ * the same key and in parallel with those that do not.
+ * <br/>
+ * An eventable object is also a thread. Calling {@link #useVirtualThread()}
+ * before {@link #start()} makes {@link #run()} execute on a virtual thread
+ * instead; in that case {@link #awaitTermination()} must be used rather than
+ * {@link #join()}.
  * @author aaron
  *
  */
@@ -18,15 +42,114 @@ public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
 	/**
-	 * Event callbacks
+	 * Event callbacks, the arrays are never modified once in the map
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
+	private volatile ConcurrentHashMap<String,IEventCallback[]> callbacks;
+	
+	/**
+	 * Callbacks for all events, the array is never modified once set
+	 */
+	private volatile AtomicReference<IWildcardCallback[]> wildcards;
+	
+	/**
+	 * A callback that is run on an executor.
+	 */
+	private static class KeyedCallback implements IEventCallback {
+		private final IEventCallback callback;
+		private final KeyedExecutor executor;
+		private final Function<Object[],?> keyOf;
+		
+		KeyedCallback(IEventCallback callback, KeyedExecutor executor, Function<Object[],?> keyOf) {
+			this.callback=callback;
+			this.executor=executor;
+			this.keyOf=keyOf;
+		}
+		
+		@Override
+		public void callback(Object... args) {
+			executor.execute(keyOf.apply(args), ()->{callback.callback(args);});
+		}
+	}
+	
+	/**
+	 * Whether {@link #run()} should execute on a virtual thread.
+	 */
+	private volatile boolean virtual=false;
+	
+	/**
+	 * The virtual thread executing {@link #run()}, if any.
+	 */
+	private volatile Thread virtualThread=null;
 	
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
+		wildcards=new AtomicReference<>(new IWildcardCallback[0]);
+	}
+	
+	/**
+	 * Use the callbacks of another eventable object in place of this one's,
+	 * so that callbacks added to or removed from either are seen by both.
+	 * Callbacks that were added to this object are dropped.
+	 * @param other
+	 */
+	protected void shareCallbacks(Eventable other) {
+		callbacks=other.callbacks;
+		wildcards=other.wildcards;
+	}
+	
+	/**
+	 * Execute {@link #run()} on a virtual thread when started. Must be
+	 * called before {@link #start()}.
+	 */
+	public void useVirtualThread() {
+		virtual=true;
+	}
+	
+	/**
+	 * @return true if this object runs on a virtual thread
+	 */
+	public boolean usesVirtualThread() {
+		return virtual;
+	}
+	
+	/**
+	 * Start executing {@link #run()}, on this thread or on a virtual thread.
+	 */
+	@Override
+	public synchronized void start() {
+		if(virtual) {
+			if(virtualThread!=null) throw new IllegalThreadStateException();
+			virtualThread=VirtualThreads.start(getName(),this);
+		} else {
+			super.start();
+		}
+	}
+	
+	@Override
+	public void interrupt() {
+		Thread thread=virtualThread;
+		if(thread!=null) thread.interrupt();
+		else super.interrupt();
+	}
+	
+	@Override
+	public boolean isInterrupted() {
+		Thread thread=virtualThread;
+		if(thread!=null) return thread.isInterrupted();
+		return super.isInterrupted();
+	}
+	
+	/**
+	 * Wait for {@link #run()} to finish, whichever thread it is executing on.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		Thread thread=virtualThread;
+		if(thread!=null) thread.join();
+		else join();
 	}
 	
 	/**
@@ -37,16 +160,21 @@ public class Eventable extends Thread {
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
+		IWildcardCallback[] any=wildcards.get();
+		for(IWildcardCallback callback : any) {
+			callback.callback(eventName,args);
+		}
+		if(any.length>0) hit=true;
+		IEventCallback[] all=callbacks.get("*");
+		if(all!=null) {
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args,0,newargs,1,args.length);
+			for(IEventCallback callback : all) {
 				callback.callback(newargs);
-			});
+			}
 			hit=true;
 		}
 		if(localEmit(eventName,args)) hit=true;
@@ -55,23 +183,58 @@ public class Eventable extends Thread {
 	}
 	
 	/**
-	 * Send event args to all of the callbacks registered
-	 * for event name.
-	 * @param eventName
-	 * @param args
+	 * Emit an event with a single String argument, in the same way as
+	 * {@link #emit(String, Object...)} but without making an array of the
+	 * argument unless a callback other than those added with {@link #onAny}
+	 * needs one.
+	 * @param eventName event name
+	 * @param eventData event argument
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
+	public boolean emit(String eventName, String eventData) {
+		if(eventData==null) return emit(eventName,new Object[] {null});
 		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
+		IWildcardCallback[] any=wildcards.get();
+		for(IWildcardCallback callback : any) {
+			callback.callback(eventName,eventData);
+		}
+		if(any.length>0) hit=true;
+		IEventCallback[] all=callbacks.get("*");
+		if(all!=null) {
+			Object[] newargs=new Object[] {eventName,eventData};
+			for(IEventCallback callback : all) {
+				callback.callback(newargs);
+			}
+			hit=true;
+		}
+		IEventCallback[] list=callbacks.get(eventName);
+		if(list!=null) {
+			Object[] args=new Object[] {eventData};
+			for(IEventCallback callback : list) {
 				callback.callback(args);
-			});
+			}
 			hit=true;
 		}
+		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
 	}
 	
+	/**
+	 * Send event args to all of the callbacks registered
+	 * for event name.
+	 * @param eventName
+	 * @param args
+	 * @return true if at least one callback received the event
+	 */
+	public boolean localEmit(String eventName, Object... args) {
+		IEventCallback[] list=callbacks.get(eventName);
+		if(list==null) return false;
+		for(IEventCallback callback : list) {
+			callback.callback(args);
+		}
+		return true;
+	}
+	
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
@@ -79,11 +242,112 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
-		}
-		callbacks.get(eventName).add(callback);
+	public Eventable on(String eventName, IEventCallback callback) {
+		callbacks.compute(eventName, (name,list)->{
+			if(list==null) return new IEventCallback[] {callback};
+			IEventCallback[] updated=Arrays.copyOf(list,list.length+1);
+			updated[list.length]=callback;
+			return updated;
+		});
+		return this;
+	}
+	
+	/**
+	 * Add a new callback for an event that runs on an executor, after the
+	 * callbacks with the same key for events emitted before it.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @param executor to run the callback on, e.g.
+	 * {@link Utils#getEventExecutor()}
+	 * @param key ordering key, e.g. this object to keep all of its events in
+	 * order
+	 * @return this event handler for chaining
+	 */
+	public Eventable on(String eventName, IEventCallback callback, KeyedExecutor executor,
+			Object key) {
+		return on(eventName, callback, executor, (args)->key);
+	}
+	
+	/**
+	 * Add a new callback for an event that runs on an executor, after the
+	 * callbacks with the same key for events emitted before it.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @param executor to run the callback on
+	 * @param keyOf gives the ordering key from the event arguments, e.g. the
+	 * name of the board that the event is about
+	 * @return this event handler for chaining
+	 */
+	public Eventable on(String eventName, IEventCallback callback, KeyedExecutor executor,
+			Function<Object[],?> keyOf) {
+		return on(eventName, new KeyedCallback(callback,executor,keyOf));
+	}
+	
+	/**
+	 * Remove a callback for an event. If the callback was added more than
+	 * once then only one of them is removed.
+	 * @param eventName event name
+	 * @param callback the same callback that was given to {@link #on}
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName, IEventCallback callback) {
+		callbacks.computeIfPresent(eventName, (name,list)->{
+			for(int i=0;i<list.length;i++) {
+				if(list[i]!=callback && !(list[i] instanceof KeyedCallback
+						&& ((KeyedCallback)list[i]).callback==callback)) continue;
+				if(list.length==1) return null;
+				IEventCallback[] updated=new IEventCallback[list.length-1];
+				System.arraycopy(list,0,updated,0,i);
+				System.arraycopy(list,i+1,updated,i,list.length-i-1);
+				return updated;
+			}
+			return list;
+		});
+		return this;
+	}
+	
+	/**
+	 * Add a callback for all events, that are emitted with {@link #emit}
+	 * rather than {@link #localEmit}.
+	 * @param callback callback to handle all events
+	 * @return this event handler for chaining
+	 */
+	public Eventable onAny(IWildcardCallback callback) {
+		wildcards.updateAndGet((list)->{
+			IWildcardCallback[] updated=Arrays.copyOf(list,list.length+1);
+			updated[list.length]=callback;
+			return updated;
+		});
+		return this;
+	}
+	
+	/**
+	 * Remove a callback for all events. If the callback was added more than
+	 * once then only one of them is removed.
+	 * @param callback the same callback that was given to {@link #onAny}
+	 * @return this event handler for chaining
+	 */
+	public Eventable offAny(IWildcardCallback callback) {
+		wildcards.updateAndGet((list)->{
+			for(int i=0;i<list.length;i++) {
+				if(list[i]!=callback) continue;
+				IWildcardCallback[] updated=new IWildcardCallback[list.length-1];
+				System.arraycopy(list,0,updated,0,i);
+				System.arraycopy(list,i+1,updated,i,list.length-i-1);
+				return updated;
+			}
+			return list;
+		});
+		return this;
+	}
+	
+	/**
+	 * Remove all of the callbacks for an event.
+	 * @param eventName event name
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName) {
+		callbacks.remove(eventName);
 		return this;
 	}
 }
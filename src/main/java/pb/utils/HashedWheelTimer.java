@@ -0,0 +1,324 @@
+package pb.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A timer that keeps its timeouts in a hashed wheel of buckets, one bucket
+ * per tick, so that scheduling and cancelling a timeout are O(1) no matter how
+ * many timeouts are pending. A single worker thread advances the wheel once
+ * per tick and hands the callbacks of expired timeouts to an executor; so a
+ * slow callback only holds up its own executor thread, not the other timeouts.
+ * Timeouts fire up to one tick late, which is fine for the protocol timeouts
+ * of this system that are measured in seconds.
+ * <br/>
+ * Timeouts that are scheduled or cancelled are queued by the calling thread
+ * and moved in or out of the wheel by the worker thread at the next tick, so
+ * no locks are needed and cancelled timeouts do not linger in the wheel.
+ *
+ * @see {@link pb.utils.Utils#setTimeout(ICallback, long)}
+ * @author aaron
+ *
+ */
+public class HashedWheelTimer {
+	private static Logger log = Logger.getLogger(HashedWheelTimer.class.getName());
+
+	/**
+	 * Most timeouts moved into the wheel per tick, so that a burst of new
+	 * timeouts does not delay the expiry of those already in the wheel.
+	 */
+	private static final int maxTransfersPerTick = 100000;
+
+	/**
+	 * A pending callback, returned when it is scheduled so that it can be
+	 * cancelled.
+	 */
+	public static class Timeout {
+		private static final int waiting=0;
+		private static final int cancelled=1;
+		private static final int expired=2;
+
+		private final HashedWheelTimer timer;
+		private final ICallback callback;
+
+		/**
+		 * Time in ns since the timer started at which to expire.
+		 */
+		private final long deadline;
+
+		/**
+		 * Remaining turns of the wheel before expiring, only used by the worker.
+		 */
+		private long remainingRounds;
+
+		/**
+		 * Links in the bucket, only used by the worker.
+		 */
+		private Timeout next;
+		private Timeout prev;
+		private Bucket bucket;
+
+		private final AtomicInteger state=new AtomicInteger(waiting);
+
+		private Timeout(HashedWheelTimer timer, ICallback callback, long deadline) {
+			this.timer=timer;
+			this.callback=callback;
+			this.deadline=deadline;
+		}
+
+		/**
+		 * Cancel the timeout, so that its callback is not called.
+		 * @return true if cancelled, false if it has already expired or been
+		 * cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(waiting, cancelled)) return false;
+			timer.cancelledTimeouts.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the timeout was cancelled
+		 */
+		public boolean isCancelled() {
+			return state.get()==cancelled;
+		}
+
+		/**
+		 * @return true if the timeout has expired, i.e. its callback has been
+		 * or is being called
+		 */
+		public boolean isExpired() {
+			return state.get()==expired;
+		}
+
+		/**
+		 * Hand the callback to the executor, unless cancelled.
+		 */
+		private void expire() {
+			if(!state.compareAndSet(waiting, expired)) return;
+			try {
+				timer.executor.execute(()->{callback.callback();});
+			} catch (RejectedExecutionException e) {
+				log.warning("timeout callback rejected: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of the timeouts that hash to one tick.
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			if(head==null) {
+				head=tail=timeout;
+			} else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if(timeout.prev!=null) timeout.prev.next=timeout.next;
+			if(timeout.next!=null) timeout.next.prev=timeout.prev;
+			if(timeout==head) head=timeout.next;
+			if(timeout==tail) tail=timeout.prev;
+			timeout.prev=timeout.next=null;
+			timeout.bucket=null;
+		}
+
+		/**
+		 * Expire the timeouts that are due by the deadline, and count down
+		 * the rounds of the others.
+		 * @param deadline time in ns since the timer started
+		 */
+		void expire(long deadline) {
+			Timeout timeout=head;
+			while(timeout!=null) {
+				Timeout next=timeout.next;
+				if(timeout.remainingRounds<=0 && timeout.deadline<=deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else if(timeout.isCancelled()) {
+					remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout=next;
+			}
+		}
+	}
+
+	/**
+	 * Length of a tick in ns.
+	 */
+	private final long tickDuration;
+
+	/**
+	 * The wheel, its length is a power of two.
+	 */
+	private final Bucket[] wheel;
+	private final int mask;
+
+	/**
+	 * Timeouts waiting to be put in the wheel.
+	 */
+	private final Queue<Timeout> newTimeouts;
+
+	/**
+	 * Timeouts waiting to be taken out of the wheel.
+	 */
+	private final Queue<Timeout> cancelledTimeouts;
+
+	/**
+	 * Runs the callbacks of expired timeouts.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * The executor made by this timer, shut down when the timer stops.
+	 */
+	private final ExecutorService defaultExecutor;
+
+	/**
+	 * System.nanoTime() when the timer started.
+	 */
+	private final long startTime;
+
+	/**
+	 * Ticks done so far, only used by the worker.
+	 */
+	private long tick=0;
+
+	private final Thread worker;
+
+	private volatile boolean stopped=false;
+
+	/**
+	 * Initialise and start the timer. Callbacks are run on a pool of daemon
+	 * threads that grows as needed, unless {@link #setExecutor(Executor)} is
+	 * used to give another executor.
+	 * @param tickDuration length of a tick in ms
+	 * @param ticksPerWheel number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(long tickDuration, int ticksPerWheel) {
+		if(tickDuration<=0) throw new IllegalArgumentException("tickDuration must be positive");
+		if(ticksPerWheel<=0) throw new IllegalArgumentException("ticksPerWheel must be positive");
+		this.tickDuration=tickDuration*1000000L;
+		int size=1;
+		while(size<ticksPerWheel) size<<=1;
+		wheel=new Bucket[size];
+		for(int i=0;i<size;i++) wheel[i]=new Bucket();
+		mask=size-1;
+		newTimeouts=new ConcurrentLinkedQueue<>();
+		cancelledTimeouts=new ConcurrentLinkedQueue<>();
+		AtomicInteger threads=new AtomicInteger();
+		defaultExecutor=Executors.newCachedThreadPool((runnable)->{
+			Thread thread=new Thread(runnable,"TimerCallback-"+threads.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor=defaultExecutor;
+		startTime=System.nanoTime();
+		worker=new Thread(()->{work();},"HashedWheelTimer");
+		worker.start();
+	}
+
+	/**
+	 * Run the callbacks of expired timeouts on the given executor from now on.
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+	/**
+	 * Schedule a callback.
+	 * @param callback the method to call
+	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled
+	 * @throws IllegalStateException if the timer has been stopped
+	 */
+	public Timeout schedule(ICallback callback, long delay) {
+		if(stopped) throw new IllegalStateException("timer has been stopped");
+		long deadline=System.nanoTime()+Math.max(delay,0)*1000000L-startTime;
+		Timeout timeout=new Timeout(this,callback,deadline);
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the timer. Pending timeouts never expire and no more can be
+	 * scheduled.
+	 */
+	public void stop() {
+		stopped=true;
+		worker.interrupt();
+		defaultExecutor.shutdown();
+	}
+
+	/**
+	 * Advance the wheel once per tick until stopped.
+	 */
+	private void work() {
+		while(!stopped) {
+			long deadline=waitForNextTick();
+			if(deadline<0) break;
+			removeCancelled();
+			transferNewTimeouts();
+			wheel[(int)(tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleep until the start of the next tick.
+	 * @return time in ns since the timer started, or -1 if stopped
+	 */
+	private long waitForNextTick() {
+		long deadline=tickDuration*(tick+1);
+		while(true) {
+			long current=System.nanoTime()-startTime;
+			long sleep=(deadline-current+999999)/1000000;
+			if(sleep<=0) return current;
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				if(stopped) return -1;
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelledTimeouts.poll())!=null) {
+			if(timeout.bucket!=null) timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void transferNewTimeouts() {
+		for(int i=0;i<maxTransfersPerTick;i++) {
+			Timeout timeout=newTimeouts.poll();
+			if(timeout==null) break;
+			if(timeout.isCancelled()) continue;
+			long calculated=timeout.deadline/tickDuration;
+			timeout.remainingRounds=(calculated-tick)/wheel.length;
+			// a timeout that is already due goes in the current tick
+			long ticks=Math.max(calculated,tick);
+			wheel[(int)(ticks & mask)].add(timeout);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package pb.utils;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on an executor so that tasks with the same key run one at a
+ * time in the order they were given, while tasks with different keys run in
+ * parallel. The tasks of each key are kept in a lane, that is handed to the
+ * executor when its first task arrives and removed once it is empty, so
+ * keys that are no longer used take no space.
+ * <br/>
+ * A lane runs at most {@link #maxTasksPerRun} tasks before going to the back
+ * of the executor's queue, so that a busy key cannot keep a thread to itself.
+ *
+ * @see {@link pb.utils.Eventable#on(String, pb.protocols.event.IEventCallback, KeyedExecutor, Object)}
+ * @author aaron
+ *
+ */
+public class KeyedExecutor {
+	private static Logger log = Logger.getLogger(KeyedExecutor.class.getName());
+
+	/**
+	 * Most tasks a lane runs before letting other lanes have the thread.
+	 */
+	private static final int maxTasksPerRun = 64;
+
+	/**
+	 * The tasks for one key, only accessed while computing its entry in
+	 * {@link KeyedExecutor#lanes}.
+	 */
+	private class Lane implements Runnable {
+		private final Object key;
+		private final ArrayDeque<Runnable> tasks=new ArrayDeque<>();
+
+		Lane(Object key) {
+			this.key=key;
+		}
+
+		@Override
+		public void run() {
+			for(int i=0;i<maxTasksPerRun;i++) {
+				Runnable task=next(this);
+				if(task==null) return;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.warning("task for "+key+" failed: "+e);
+				}
+			}
+			submit(this);
+		}
+	}
+
+	private final Executor executor;
+
+	/**
+	 * Lanes that have tasks waiting or running.
+	 */
+	private final ConcurrentHashMap<Object,Lane> lanes;
+
+	/**
+	 * @param executor to run the tasks on
+	 */
+	public KeyedExecutor(Executor executor) {
+		this.executor=executor;
+		lanes=new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Run a task after all of the tasks given before it with the same key.
+	 * @param key not null
+	 * @param task
+	 */
+	public void execute(Object key, Runnable task) {
+		Lane[] started=new Lane[1];
+		lanes.compute(key, (k,lane)->{
+			if(lane==null) {
+				lane=new Lane(k);
+				started[0]=lane;
+			}
+			lane.tasks.add(task);
+			return lane;
+		});
+		if(started[0]!=null) submit(started[0]);
+	}
+
+	/**
+	 * Take the next task of a lane, removing the lane if it has none.
+	 * @param lane
+	 * @return the task, or null if there are no more
+	 */
+	private Runnable next(Lane lane) {
+		Runnable[] task=new Runnable[1];
+		lanes.compute(lane.key, (k,current)->{
+			task[0]=current.tasks.poll();
+			return task[0]==null ? null : current;
+		});
+		return task[0];
+	}
+
+	/**
+	 * Hand a lane to the executor, dropping its tasks if it is rejected.
+	 * @param lane
+	 */
+	private void submit(Lane lane) {
+		try {
+			executor.execute(lane);
+		} catch (RejectedExecutionException e) {
+			log.warning("tasks for "+lane.key+" rejected: "+e.getMessage());
+			lanes.remove(lane.key, lane);
+		}
+	}
+}
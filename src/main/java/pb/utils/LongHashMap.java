@@ -0,0 +1,172 @@
+package pb.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * A hash map from primitive long keys to values, so that keys are not boxed.
+ * Entries are kept in open addressed arrays with linear probing, and removal
+ * shifts later entries back rather than leaving tombstones, so the map does
+ * not degrade as entries come and go. Values may not be null. It is not
+ * thread safe, users must synchronize access to it.
+ *
+ * @author aaron
+ *
+ * @param <V> type of the values
+ */
+public class LongHashMap<V> {
+	private static final int defaultCapacity = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size=0;
+
+	public LongHashMap() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * @param capacity expected number of entries
+	 */
+	public LongHashMap(int capacity) {
+		int length=defaultCapacity;
+		while(length<capacity*2) length<<=1;
+		allocate(length);
+	}
+
+	private void allocate(int length) {
+		keys=new long[length];
+		values=new Object[length];
+		mask=length-1;
+	}
+
+	/**
+	 * @param key
+	 * @return the slot where the key would ideally be
+	 */
+	private int slot(long key) {
+		long hash=key*0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash>>>32)) & mask;
+	}
+
+	/**
+	 * @param key
+	 * @return the slot holding the key, or -1 if not present
+	 */
+	private int find(long key) {
+		int i=slot(key);
+		while(values[i]!=null) {
+			if(keys[i]==key) return i;
+			i=(i+1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param key
+	 * @return the value for the key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i=find(key);
+		return i<0 ? null : (V) values[i];
+	}
+
+	/**
+	 * Associate a value with a key.
+	 * @param key
+	 * @param value not null
+	 * @return the previous value for the key, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if(value==null) throw new NullPointerException("value");
+		int i=slot(key);
+		while(values[i]!=null) {
+			if(keys[i]==key) {
+				V old=(V) values[i];
+				values[i]=value;
+				return old;
+			}
+			i=(i+1) & mask;
+		}
+		keys[i]=key;
+		values[i]=value;
+		if(++size*2>values.length) grow();
+		return null;
+	}
+
+	/**
+	 * Remove the value for a key.
+	 * @param key
+	 * @return the value that was removed, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i=find(key);
+		if(i<0) return null;
+		V old=(V) values[i];
+		values[i]=null;
+		size--;
+		// move back any later entries that can no longer be found past the gap
+		int j=i;
+		while(true) {
+			j=(j+1) & mask;
+			if(values[j]==null) break;
+			int k=slot(keys[j]);
+			boolean inPlace = i<=j ? (i<k && k<=j) : (i<k || k<=j);
+			if(inPlace) continue;
+			keys[i]=keys[j];
+			values[i]=values[j];
+			values[j]=null;
+			i=j;
+		}
+		return old;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if there are no entries
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		for(int i=0;i<values.length;i++) values[i]=null;
+		size=0;
+	}
+
+	/**
+	 * Give each value to the action.
+	 * @param action
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachValue(Consumer<V> action) {
+		for(int i=0;i<values.length;i++) {
+			if(values[i]!=null) action.accept((V) values[i]);
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys=keys;
+		Object[] oldValues=values;
+		allocate(values.length*2);
+		for(int i=0;i<oldValues.length;i++) {
+			if(oldValues[i]==null) continue;
+			int j=slot(oldKeys[i]);
+			while(values[j]!=null) j=(j+1) & mask;
+			keys[j]=oldKeys[i];
+			values[j]=oldValues[i];
+		}
+	}
+}
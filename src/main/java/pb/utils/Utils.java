@@ -1,7 +1,9 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import pb.protocols.ICallback;
 
@@ -35,14 +37,67 @@ public class Utils {
 	 */
 	public static final int chunkSize = 16*1024;
 	
+	/**
+	 * Default largest frame in bytes that an endpoint will accept when binary
+	 * framing is in use, see {@link #setMaxFrameSize(int)}.
+	 */
+	public static final int defaultMaxFrameSize = 1024*1024;
+	
+	/**
+	 * Largest number of frames that an endpoint will queue for writing;
+	 * senders wait when the queue is full.
+	 */
+	public static final int outboundQueueSize = 1024;
+	
+	/**
+	 * Default bytes waiting to be written over which an endpoint becomes
+	 * unwritable.
+	 */
+	public static final int writeHighWatermark = 64*1024;
+	
+	/**
+	 * Default bytes waiting to be written at which an unwritable endpoint
+	 * becomes writable again.
+	 */
+	public static final int writeLowWatermark = 32*1024;
+	
+	/**
+	 * Time in ms that a closing endpoint waits for its queued frames to be
+	 * written before closing the socket anyway.
+	 */
+	public static final int closeFlushTime = 5000;
+	
+	/**
+	 * Length of a tick of the timer in ms, timeouts fire up to this late.
+	 */
+	public static final int timerTick = 10;
+	
+	/**
+	 * Number of ticks in the timer wheel.
+	 */
+	public static final int timerWheelSize = 512;
+	
 	/**
 	 * Use of a single timer object over the entire system helps
 	 * to reduce thread usage.
 	 */
-	private Timer timer = new Timer();
+	private final HashedWheelTimer timer;
+	
+	/**
+	 * Threads for event callbacks that do not run on the emitting thread,
+	 * made when first needed.
+	 */
+	private ExecutorService eventThreads=null;
+	private KeyedExecutor eventExecutor=null;
+	
+	/**
+	 * Largest frame in bytes that an endpoint will accept when binary framing
+	 * is in use; anything larger is treated as a broken connection.
+	 */
+	private volatile int maxFrameSize=defaultMaxFrameSize;
 	
 	public Utils() {
-		timer=new Timer();
+		timer=new HashedWheelTimer(timerTick,timerWheelSize);
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -50,6 +105,24 @@ public class Utils {
 		return utils;
 	}
 	
+	/**
+	 * @return the largest frame in bytes that an endpoint will accept
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * Both ends of a connection should allow frames as large as either of
+	 * them sends. Frames are read into arrays that grow as their bytes
+	 * arrive, so a large limit only costs memory for frames that are sent.
+	 * @param maxFrameSize the largest frame in bytes that an endpoint will
+	 * accept, at least 64KB
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = Math.max(64*1024, maxFrameSize);
+	}
+	
 	/**
 	 * Convenience method to set an anonymous method callback
 	 * after a timeout delay. Go JavaScript :-)
@@ -58,25 +131,55 @@ public class Utils {
 	 * <code>
 	 * Utils.getInstance().setTimeout(()->{doSomething();},10000);
 	 * </code>
+	 * The callback is run on the timer's executor, see
+	 * {@link #setTimerExecutor(Executor)}.
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled if the callback is no
+	 * longer needed
+	 * @throws IllegalStateException if {@link #cleanUp()} has been called
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public HashedWheelTimer.Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return timer.schedule(callback, delay);
+	}
+	
+	/**
+	 * Run timeout callbacks on the given executor, rather than on the
+	 * timer's own pool of threads.
+	 * @param executor
+	 */
+	public void setTimerExecutor(Executor executor) {
+		timer.setExecutor(executor);
+	}
+	
+	/**
+	 * A shared executor for event callbacks that should not hold up the
+	 * thread that emits their events, see
+	 * {@link Eventable#on(String, pb.protocols.event.IEventCallback, KeyedExecutor, Object)}.
+	 * It runs them on a pool of daemon threads that grows as needed.
+	 * @return the executor
+	 */
+	public synchronized KeyedExecutor getEventExecutor() {
+		if(eventExecutor==null) {
+			AtomicInteger threads=new AtomicInteger();
+			eventThreads=Executors.newCachedThreadPool((runnable)->{
+				Thread thread=new Thread(runnable,"EventWorker-"+threads.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+			eventExecutor=new KeyedExecutor(eventThreads);
+		}
+		return eventExecutor;
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop();
+		synchronized(this) {
+			if(eventThreads!=null) eventThreads.shutdown();
+		}
 	}
 }
@@ -0,0 +1,86 @@
+package pb.utils;
+
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+
+/**
+ * Starts virtual threads when the JVM provides them (Java 21 or later). The
+ * project is compiled for an older language level, so the virtual thread
+ * builder is looked up reflectively, once; on older JVMs a platform thread is
+ * started instead and a warning is logged.
+ *
+ * @author aaron
+ *
+ */
+public class VirtualThreads {
+	private static Logger log = Logger.getLogger(VirtualThreads.class.getName());
+
+	/**
+	 * Thread.ofVirtual(), or null if not available.
+	 */
+	private static final Method ofVirtual;
+
+	/**
+	 * Thread.Builder.name(String)
+	 */
+	private static final Method name;
+
+	/**
+	 * Thread.Builder.start(Runnable)
+	 */
+	private static final Method start;
+
+	/**
+	 * Only warn once about falling back to platform threads.
+	 */
+	private static volatile boolean warned=false;
+
+	static {
+		Method ofVirtualMethod=null;
+		Method nameMethod=null;
+		Method startMethod=null;
+		try {
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			nameMethod = builder.getMethod("name", String.class);
+			startMethod = builder.getMethod("start", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtualMethod=null;
+		}
+		ofVirtual=ofVirtualMethod;
+		name=nameMethod;
+		start=startMethod;
+	}
+
+	/**
+	 * @return true if this JVM can start virtual threads
+	 */
+	public static boolean isSupported() {
+		return ofVirtual!=null;
+	}
+
+	/**
+	 * Start a virtual thread, or a platform thread if virtual threads
+	 * are not supported by this JVM.
+	 * @param threadName name for the thread
+	 * @param runnable what the thread should run
+	 * @return the started thread
+	 */
+	public static Thread start(String threadName, Runnable runnable) {
+		if(ofVirtual!=null) {
+			try {
+				Object builder = ofVirtual.invoke(null);
+				builder = name.invoke(builder, threadName);
+				return (Thread) start.invoke(builder, runnable);
+			} catch (ReflectiveOperationException e) {
+				log.warning("could not start a virtual thread: "+e.getMessage());
+			}
+		} else if(!warned) {
+			warned=true;
+			log.warning("virtual threads need Java 21 or later, using platform threads");
+		}
+		Thread thread = new Thread(runnable,threadName);
+		thread.start();
+		return thread;
+	}
+}